@@ -0,0 +1,321 @@
+package com.dotcms.hazelcast.mapstore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Records what hazelcast asks of the store: the op, region, a hash of the key, the serialized
+ * size of the value and how long it took. Records go to a ring buffer without locking and are
+ * written to a trace file by {@link #flush()}. If the buffer laps the writer, the oldest records
+ * are dropped and counted rather than blocking the caller. Keys are only kept as 64 bit hashes,
+ * which is enough to replay the access pattern with {@link H22TraceReplay}.
+ * <p>
+ * Times are nanos since the trace started, and every file carries the wall clock of that start,
+ * so traces of different members can be lined up, as closely as their clocks agree. A load that
+ * waited on the same key's load on another thread is recorded with size -1, the size is only
+ * known to the thread that read the row.
+ */
+public class H22AccessTrace implements Closeable {
+
+    enum Op {
+        LOAD, STORE, DELETE, LOAD_ALL_KEYS
+    }
+
+    static final int MAGIC = 0x48325431; // H2T1
+    static final String SUFFIX = ".h22t";
+
+    private static final byte REGION = -1;
+
+    private static final Logger logger = Logger.getLogger(H22AccessTrace.class.getName());
+
+    final File folder;
+    final long maxFileBytes;
+    private final int capacity;
+    private final long origin = System.nanoTime();
+    private final long originMillis = System.currentTimeMillis();
+
+    // the ring, one record per slot across the arrays. published holds the sequence + 1 last
+    // written to each slot, negated while the slot is being written, 0 if never written. A slot
+    // is only read while it is whole, and its copy only kept if the sequence did not change
+    // under it. abandoned holds the latest sequence + 1 whose writer gave the slot up
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLongArray published;
+    private final AtomicLongArray abandoned;
+    // run by a writer once it holds its slot, for tests
+    volatile Runnable afterClaim;
+    private final byte[] ops;
+    private final int[] regionOf;
+    private final long[] keyHashes;
+    private final long[] sizes;
+    private final long[] times;
+    private final long[] durations;
+
+    private final Map<String, Integer> regionIds = new ConcurrentHashMap<>();
+    private final List<String> regionNames = new CopyOnWriteArrayList<>();
+    private final AtomicLong dropped = new AtomicLong();
+
+    // flush side, only touched under the lock of this
+    private long flushed = 0;
+    private int writtenRegions = 0;
+    private DataOutputStream out;
+    private long fileBytes = 0;
+    private File file;
+
+    /**
+     * @param capacity records the ring holds between flushes
+     */
+    public H22AccessTrace(File folder, int capacity, int maxFileMegabytes) {
+        this.folder = folder;
+        this.capacity = capacity;
+        this.maxFileBytes = maxFileMegabytes * 1024L * 1024L;
+        published = new AtomicLongArray(capacity);
+        abandoned = new AtomicLongArray(capacity);
+        ops = new byte[capacity];
+        regionOf = new int[capacity];
+        keyHashes = new long[capacity];
+        sizes = new long[capacity];
+        times = new long[capacity];
+        durations = new long[capacity];
+    }
+
+    /**
+     * Records an op that started at startNanos, a System.nanoTime(), and ends now
+     *
+     * @param size serialized size of the value, or the number of keys for a key load. -1 if
+     *        unknown
+     */
+    public void record(Op op, String region, String key, long size, long startNanos) {
+        long now = System.nanoTime();
+        long seq = next.getAndIncrement();
+        int slot = (int) (seq % capacity);
+        // one writer per slot at a time. One that laps a writer still busy with the slot gives
+        // its record up, flush counts it as dropped. The CAS also keeps the writes below from
+        // being seen before the mark
+        long current = published.get(slot);
+        if (current < 0 || current > seq || !published.compareAndSet(slot, current, -(seq + 1))) {
+            abandoned.accumulateAndGet(slot, seq + 1, Math::max);
+            return;
+        }
+        Runnable hook = afterClaim;
+        if (hook != null) {
+            hook.run();
+        }
+        ops[slot] = (byte) op.ordinal();
+        regionOf[slot] = regionId(region);
+        keyHashes[slot] = (key == null) ? 0 : hash(key);
+        sizes[slot] = size;
+        times[slot] = startNanos - origin;
+        durations[slot] = now - startNanos;
+        published.set(slot, seq + 1);
+    }
+
+    static long hash(String key) {
+        return Hashing.murmur3_128().hashString(key, StandardCharsets.UTF_8).asLong();
+    }
+
+    private int regionId(String region) {
+        Integer id = regionIds.get(region);
+        if (id != null) {
+            return id;
+        }
+        synchronized (regionNames) {
+            return regionIds.computeIfAbsent(region, r -> {
+                regionNames.add(r);
+                return regionNames.size() - 1;
+            });
+        }
+    }
+
+    /**
+     * Records dropped because the ring filled up before it was flushed
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Writes every complete record in the ring to the trace file
+     */
+    public synchronized void flush() {
+        long end = next.get();
+        if (end - flushed > capacity) {
+            dropped.addAndGet(end - flushed - capacity);
+            flushed = end - capacity;
+        }
+        try {
+            while (flushed < end) {
+                int slot = (int) (flushed % capacity);
+                long seq = published.get(slot);
+                if (Math.abs(seq) - 1 > flushed) {
+                    // lapped while we got here
+                    dropped.incrementAndGet();
+                    flushed++;
+                    continue;
+                }
+                if (seq != flushed + 1 && abandoned.get(slot) > flushed) {
+                    // given up by its writer, the slot holds an older record or one still being
+                    // written, which will not be this one
+                    dropped.incrementAndGet();
+                    flushed++;
+                    continue;
+                }
+                if (seq != flushed + 1) {
+                    // still being written, pick it up on the next flush
+                    break;
+                }
+                byte op = ops[slot];
+                int region = regionOf[slot];
+                long keyHash = keyHashes[slot];
+                long size = sizes[slot];
+                long time = times[slot];
+                long duration = durations[slot];
+                // a volatile write, so the reads above cannot move past the check
+                if (published.compareAndSet(slot, seq, seq)) {
+                    write(op, region, keyHash, size, time, duration);
+                } else {
+                    // lapped while we copied it
+                    dropped.incrementAndGet();
+                }
+                flushed++;
+            }
+            if (out != null) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            logger.warning("unable to write access trace to " + folder + " : " + e.getMessage());
+        }
+    }
+
+    private void write(byte op, int region, long keyHash, long size, long time, long duration)
+                    throws IOException {
+        if (out == null || fileBytes >= maxFileBytes) {
+            roll();
+        }
+        while (writtenRegions <= region) {
+            out.writeByte(REGION);
+            out.writeInt(writtenRegions);
+            out.writeUTF(regionNames.get(writtenRegions));
+            writtenRegions++;
+        }
+        out.writeByte(op);
+        out.writeInt(region);
+        out.writeLong(keyHash);
+        out.writeLong(size);
+        out.writeLong(time);
+        out.writeLong(duration);
+        fileBytes += 37;
+    }
+
+    private void roll() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+        folder.mkdirs();
+        file = new File(folder, "trace-"
+                        + new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss-SSS").format(new Date()) + SUFFIX);
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        out.writeInt(MAGIC);
+        out.writeLong(originMillis);
+        fileBytes = 12;
+        // every file names its own regions, so each one can be replayed on its own
+        writtenRegions = 0;
+        logger.info("H22 access trace writing to " + file);
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+        // records still being written
+        dropped.addAndGet(next.get() - flushed);
+        flushed = next.get();
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                logger.warning("unable to close access trace " + file + " : " + e.getMessage());
+            }
+            out = null;
+        }
+        if (dropped.get() > 0) {
+            logger.warning("H22 access trace dropped " + dropped.get()
+                            + " records, raise mapstore.h22.trace.buffer.size");
+        }
+    }
+
+    /**
+     * Reads a trace file back one record at a time. A file cut short by a crash reads up to its
+     * last whole record
+     */
+    public static class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final List<String> regions = new ArrayList<>();
+        // wall clock of the trace start that timeNanos counts from
+        final long startedMillis;
+        Op op;
+        String region;
+        long keyHash;
+        long size;
+        long timeNanos;
+        long durationNanos;
+
+        public Reader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException(file + " is not an H22 access trace");
+            }
+            startedMillis = in.readLong();
+        }
+
+        public boolean next() throws IOException {
+            try {
+                byte type = in.readByte();
+                while (type == REGION) {
+                    int id = in.readInt();
+                    String name = in.readUTF();
+                    while (regions.size() <= id) {
+                        regions.add(null);
+                    }
+                    regions.set(id, name);
+                    type = in.readByte();
+                }
+                op = Op.values()[type];
+                region = regions.get(in.readInt());
+                keyHash = in.readLong();
+                size = in.readLong();
+                timeNanos = in.readLong();
+                durationNanos = in.readLong();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.dotcms.hazelcast.mapstore;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of cache ids, safe for concurrent puts and lookups without locking. The ids are
+ * already 64 bit hashes of group and key, so they are only remixed rather than hashed again.
+ */
+public class H22BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitSize;
+    private final int hashes;
+
+    /**
+     * Sizes the filter for the expected number of ids at the given false positive probability
+     */
+    public H22BloomFilter(long expectedInsertions, double fpp) {
+        long optimalBits = (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (optimalBits + 63) / 64));
+        this.bits = new AtomicLongArray(words);
+        this.bitSize = words * 64L;
+        this.hashes = (int) Math.max(1,
+                        Math.round((double) bitSize / Math.max(1, expectedInsertions) * Math.log(2)));
+    }
+
+    public void put(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L);
+        for (int i = 1; i <= hashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitSize;
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long old;
+            do {
+                old = bits.get(word);
+                if ((old & mask) != 0) {
+                    break;
+                }
+            } while (!bits.compareAndSet(word, old, old | mask));
+        }
+    }
+
+    /**
+     * false if the id was certainly never put
+     */
+    public boolean mightContain(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L);
+        for (int i = 1; i <= hashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitSize;
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long sizeInBytes() {
+        return bitSize / 8;
+    }
+
+    /**
+     * The false positive probability at the filter's current fill
+     */
+    public double currentFpp() {
+        long set = 0;
+        for (int i = 0; i < bits.length(); i++) {
+            set += Long.bitCount(bits.get(i));
+        }
+        return Math.pow((double) set / bitSize, hashes);
+    }
+
+    // murmur3 64 bit finalizer
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,188 @@
+package com.dotcms.hazelcast.mapstore;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fails the calls to a db fast once too many of them fail or run slow, so hazelcast threads do
+ * not pile up behind a stalled h2. Once it has been open for a while, a single probe call is let
+ * through. If the probe works the breaker closes, if not it stays open for another round.
+ */
+public class H22CircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    volatile long windowMillis;
+    volatile int minimumCalls;
+    volatile double failureRate;
+    volatile long slowCallNanos;
+    volatile long openMillis;
+
+    private volatile State state = State.CLOSED;
+    // when the breaker opened or, half open, when the probe was let through
+    private volatile long since = 0;
+    // the thread the probe was let through on, only its answer closes or reopens the breaker
+    private Thread probe;
+    private volatile long windowStart = System.currentTimeMillis();
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicInteger failedProbes = new AtomicInteger();
+    private final AtomicLong trips = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * A breaker that never opens until it is configured
+     */
+    public H22CircuitBreaker() {
+        this(Long.MAX_VALUE, Integer.MAX_VALUE, 1, Long.MAX_VALUE / 1000000, 0);
+    }
+
+    public H22CircuitBreaker(long windowMillis, int minimumCalls, double failureRate,
+                    long slowCallMillis, long openMillis) {
+        configure(windowMillis, minimumCalls, failureRate, slowCallMillis, openMillis);
+    }
+
+    /**
+     * Changes the thresholds, calls already counted in the current window stay counted
+     *
+     * @param windowMillis calls are counted over windows of this length
+     * @param minimumCalls calls a window needs before it can open the breaker
+     * @param failureRate share of failed or slow calls in a window that opens the breaker
+     * @param slowCallMillis calls taking longer than this count as failed
+     * @param openMillis how long the breaker stays open before it lets a probe through
+     */
+    public void configure(long windowMillis, int minimumCalls, double failureRate,
+                    long slowCallMillis, long openMillis) {
+        this.windowMillis = windowMillis;
+        this.minimumCalls = Math.max(1, minimumCalls);
+        this.failureRate = failureRate;
+        this.slowCallNanos = TimeUnit.NANOSECONDS.convert(slowCallMillis, TimeUnit.MILLISECONDS);
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Whether the call may go to the db. Every allowed call must be followed by
+     * {@link #onSuccess(long)} or {@link #onFailure()}
+     */
+    public boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            // half open with no answer from the probe for as long, it got lost, send another
+            if (state != State.CLOSED && System.currentTimeMillis() - since >= openMillis) {
+                state = State.HALF_OPEN;
+                since = System.currentTimeMillis();
+                probe = Thread.currentThread();
+                return true;
+            }
+            if (state == State.CLOSED) {
+                return true;
+            }
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    public void onSuccess(long nanos) {
+        if (state != State.CLOSED) {
+            probed(nanos < slowCallNanos);
+            return;
+        }
+        record(nanos >= slowCallNanos);
+    }
+
+    public void onFailure() {
+        if (state != State.CLOSED) {
+            probed(false);
+            return;
+        }
+        record(true);
+    }
+
+    private synchronized void probed(boolean worked) {
+        if (state != State.HALF_OPEN || probe != Thread.currentThread()) {
+            // a call let through before the breaker opened, not the probe
+            return;
+        }
+        probe = null;
+        if (worked) {
+            failedProbes.set(0);
+            resetWindow(System.currentTimeMillis());
+            state = State.CLOSED;
+        } else {
+            failedProbes.incrementAndGet();
+            state = State.OPEN;
+            since = System.currentTimeMillis();
+        }
+    }
+
+    private void record(boolean bad) {
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= windowMillis) {
+            synchronized (this) {
+                if (now - windowStart >= windowMillis) {
+                    resetWindow(now);
+                }
+            }
+        }
+        int total = calls.incrementAndGet();
+        if (!bad) {
+            return;
+        }
+        int failed = failures.incrementAndGet();
+        if (total >= minimumCalls && failed >= failureRate * total) {
+            trip();
+        }
+    }
+
+    private synchronized void trip() {
+        if (state == State.CLOSED) {
+            state = State.OPEN;
+            since = System.currentTimeMillis();
+            trips.incrementAndGet();
+        }
+    }
+
+    private void resetWindow(long now) {
+        windowStart = now;
+        calls.set(0);
+        failures.set(0);
+    }
+
+    /**
+     * Closes the breaker, for when the db behind it has been replaced
+     */
+    public synchronized void reset() {
+        probe = null;
+        failedProbes.set(0);
+        resetWindow(System.currentTimeMillis());
+        state = State.CLOSED;
+    }
+
+    public State state() {
+        return state;
+    }
+
+    public boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * Probes that failed in a row since the breaker last closed
+     */
+    public int failedProbes() {
+        return failedProbes.get();
+    }
+
+    public long trips() {
+        return trips.get();
+    }
+
+    public long rejected() {
+        return rejected.get();
+    }
+}
@@ -0,0 +1,283 @@
+package com.dotcms.hazelcast.mapstore;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * The mapstore settings, merged from, last one wins:
+ * <ol>
+ * <li>H22MapStore.properties on the classpath</li>
+ * <li>the file named by mapstore.h22.config.file, if any</li>
+ * <li>environment variables, MAPSTORE_H22_DB_POOLSIZE_MAX sets mapstore.h22.db.poolsize.max</li>
+ * <li>system properties starting with mapstore.</li>
+ * </ol>
+ * A config is an immutable snapshot, values are parsed and checked once per snapshot and bad
+ * ones are logged and replaced by their default. While anyone listens, the sources are checked
+ * every mapstore.h22.config.watch.milliseconds and listeners get the new snapshot when something
+ * changed, so tunables can be changed on a running member.
+ */
+public class H22Config {
+
+    static final String PROPERTY_FILE_NAME = "H22MapStore.properties";
+    static final String CONFIG_FILE_KEY = "mapstore.h22.config.file";
+
+    private static final Logger logger = Logger.getLogger(H22Config.class.getName());
+
+    private static volatile H22Config current;
+    private static final CopyOnWriteArrayList<Consumer<H22Config>> listeners =
+                    new CopyOnWriteArrayList<>();
+    private static ScheduledExecutorService watcher;
+
+    private final Properties properties;
+    // key and type -> parsed value, so each value is parsed and validated once per snapshot
+    private final Map<String, Object> parsed = new ConcurrentHashMap<>();
+    // key and type of the values that did not parse, so each is only logged once per snapshot
+    private final Set<String> rejected = ConcurrentHashMap.newKeySet();
+
+    H22Config(Properties properties) {
+        this.properties = properties;
+    }
+
+    public static H22Config current() {
+        H22Config config = current;
+        if (config == null) {
+            synchronized (H22Config.class) {
+                if (current == null) {
+                    current = new H22Config(load());
+                    current.warnUnknownKeys();
+                }
+                config = current;
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Reads every source again and, if anything changed, makes it the current config and tells
+     * the listeners
+     */
+    public static synchronized H22Config reload() {
+        H22Config old = current();
+        Properties properties = load();
+        if (properties.equals(old.properties)) {
+            return old;
+        }
+        H22Config config = new H22Config(properties);
+        Set<String> changed = new TreeSet<>();
+        for (String key : properties.stringPropertyNames()) {
+            if (!properties.getProperty(key).equals(old.properties.getProperty(key))) {
+                changed.add(key);
+            }
+        }
+        for (String key : old.properties.stringPropertyNames()) {
+            if (properties.getProperty(key) == null) {
+                changed.add(key);
+            }
+        }
+        logger.info("H22 config changed: " + changed);
+        config.warnUnknownKeys();
+        current = config;
+        for (Consumer<H22Config> listener : listeners) {
+            try {
+                listener.accept(config);
+            } catch (RuntimeException e) {
+                logger.warning("unable to apply H22 config : " + e.getMessage());
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Calls the listener with every config that replaces the current one. The sources are
+     * watched while there are listeners
+     */
+    public static synchronized void addListener(Consumer<H22Config> listener) {
+        listeners.add(listener);
+        if (watcher == null) {
+            int watchMillis = current().getInt("mapstore.h22.config.watch.milliseconds", 10000, 0,
+                            Integer.MAX_VALUE);
+            if (watchMillis > 0) {
+                watcher = Executors.newSingleThreadScheduledExecutor(
+                                H22MapStoreStorage.daemonThreads("h22-config-%d"));
+                watcher.scheduleWithFixedDelay(H22Config::reload, watchMillis, watchMillis,
+                                TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    public static synchronized void removeListener(Consumer<H22Config> listener) {
+        listeners.remove(listener);
+        if (listeners.isEmpty() && watcher != null) {
+            watcher.shutdownNow();
+            watcher = null;
+        }
+    }
+
+    static Properties load() {
+        Properties properties = new Properties();
+        try (InputStream in = classpathFile()) {
+            if (in == null) {
+                logger.warning(PROPERTY_FILE_NAME + " not found on the classpath");
+            } else {
+                properties.load(in);
+            }
+        } catch (IOException e) {
+            logger.warning("Can't read " + PROPERTY_FILE_NAME + " : " + e.getMessage());
+        }
+
+        String file = System.getProperty(CONFIG_FILE_KEY, System.getenv(envName(CONFIG_FILE_KEY)));
+        if (file == null) {
+            file = properties.getProperty(CONFIG_FILE_KEY);
+        }
+        if (file != null) {
+            try (InputStream in = new FileInputStream(new File(file))) {
+                properties.load(in);
+            } catch (IOException e) {
+                logger.warning("Can't read " + file + " : " + e.getMessage());
+            }
+        }
+
+        // env vars can not hold dots or lower case, so match them against the known keys
+        Map<String, String> known = new ConcurrentHashMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            known.put(envName(key), key);
+        }
+        for (Entry<String, String> env : System.getenv().entrySet()) {
+            if (env.getKey().startsWith("MAPSTORE_")) {
+                String key = known.get(env.getKey());
+                properties.setProperty((key != null) ? key
+                                : env.getKey().toLowerCase().replace('_', '.'), env.getValue());
+            }
+        }
+
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith("mapstore.")) {
+                properties.setProperty(key, System.getProperty(key));
+            }
+        }
+        return properties;
+    }
+
+    private static InputStream classpathFile() {
+        InputStream in = H22Config.class.getResourceAsStream("/" + PROPERTY_FILE_NAME);
+        if (in == null) {
+            in = H22Config.class.getResourceAsStream(
+                            "/com/dotcms/hazelcast/mapstore/" + PROPERTY_FILE_NAME);
+        }
+        return in;
+    }
+
+    static String envName(String key) {
+        return key.toUpperCase().replaceAll("[^A-Z0-9]", "_");
+    }
+
+    /**
+     * Keys no default in H22MapStore.properties knows of are most likely typos
+     */
+    private void warnUnknownKeys() {
+        Properties defaults = new Properties();
+        try (InputStream in = classpathFile()) {
+            if (in == null) {
+                return;
+            }
+            defaults.load(in);
+        } catch (IOException e) {
+            return;
+        }
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith("mapstore.") && !defaults.containsKey(key)
+                            && !key.equals(CONFIG_FILE_KEY)
+                            && !key.startsWith("mapstore.h22.ttl.seconds.")
+                            && !key.startsWith("mapstore.benchmark")) {
+                logger.warning("Unknown H22 setting " + key + ", it is ignored");
+            }
+        }
+    }
+
+    public String get(String key) {
+        return properties.getProperty(key);
+    }
+
+    public String get(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        return getInt(key, defaultValue, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * The value of key, or defaultValue if it is not set, not a number or not within min and max
+     */
+    public int getInt(String key, int defaultValue, int min, int max) {
+        return parse(key, defaultValue, v -> {
+            int value = Integer.parseInt(v.trim());
+            return (value >= min && value <= max) ? value : null;
+        }, (min == Integer.MIN_VALUE && max == Integer.MAX_VALUE) ? "a whole number"
+                        : "a whole number from " + min + " to " + max);
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        return getDouble(key, defaultValue, -Double.MAX_VALUE, Double.MAX_VALUE);
+    }
+
+    public double getDouble(String key, double defaultValue, double min, double max) {
+        return parse(key, defaultValue, v -> {
+            double value = Double.parseDouble(v.trim());
+            return (value >= min && value <= max) ? value : null;
+        }, (min == -Double.MAX_VALUE && max == Double.MAX_VALUE) ? "a number"
+                        : "a number from " + min + " to " + max);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        return parse(key, defaultValue, v -> {
+            String value = v.trim();
+            return value.equalsIgnoreCase("true") ? Boolean.TRUE
+                            : value.equalsIgnoreCase("false") ? Boolean.FALSE : null;
+        }, "true or false");
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T parse(String key, T defaultValue, Function<String, T> parser, String expected) {
+        String parsedKey = key + "|" + expected;
+        Object value = parsed.get(parsedKey);
+        if (value == null) {
+            String raw = properties.getProperty(key);
+            value = defaultValue;
+            if (raw != null) {
+                T typed = null;
+                try {
+                    typed = parser.apply(raw);
+                } catch (NumberFormatException e) {
+                    // logged below
+                }
+                if (typed == null) {
+                    if (rejected.add(parsedKey)) {
+                        logger.warning("H22 setting " + key + "=" + raw + " is not " + expected
+                                        + ", using " + defaultValue);
+                    }
+                } else {
+                    value = typed;
+                    // defaults can differ between callers, only cache what was actually configured
+                    parsed.put(parsedKey, value);
+                }
+            }
+        }
+        return (T) value;
+    }
+}
@@ -0,0 +1,218 @@
+package com.dotcms.hazelcast.mapstore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * The file format of {@link H22MapStoreStorage#export(File, long)}. A gzipped stream of a
+ * versioned header followed by rows, each with its group, key, expiry, partition and serialized
+ * value, and closed by the row count and a CRC32 of everything before it. Since version 2 the
+ * same count and checksum also follow every block of rows, so a reader knows which rows are
+ * sound before it reaches the end. A file that was not finished, or was damaged, fails on read.
+ */
+public class H22ExportFormat {
+
+    static final int MAGIC = 0x48323258; // H22X
+    static final int VERSION = 2;
+    static final String SUFFIX = ".h22x";
+
+    private static final byte ROW = 1;
+    private static final byte END = 0;
+    private static final byte BLOCK = 2;
+
+    public static class Writer implements Closeable {
+
+        private final CheckedOutputStream checked;
+        private final DataOutputStream out;
+        private final int blockRows;
+        private long rows = 0;
+
+        /**
+         * @param blockRows rows between checksums, <1 writes a checksum only at the end
+         */
+        public Writer(File file, String schemaVersion, int blockRows) throws IOException {
+            this.blockRows = blockRows;
+            checked = new CheckedOutputStream(new GZIPOutputStream(
+                            new BufferedOutputStream(new FileOutputStream(file)), 65536), new CRC32());
+            out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(schemaVersion);
+        }
+
+        /**
+         * Copies the value of length bytes straight from the stream into the file
+         */
+        public void write(String group, String key, long expires, int partition, long length,
+                        InputStream value) throws IOException {
+            out.writeByte(ROW);
+            out.writeUTF(group);
+            out.writeUTF(key);
+            out.writeLong(expires);
+            out.writeInt(partition);
+            out.writeLong(length);
+            if (IOUtils.copyLarge(value, out) != length) {
+                throw new IOException("value of " + group + " | " + key + " changed while exporting");
+            }
+            rows++;
+            if (blockRows > 0 && rows % blockRows == 0) {
+                out.writeByte(BLOCK);
+                writeChecksum();
+            }
+        }
+
+        /**
+         * Writes the row count and checksum, a file that is closed without it will not import
+         */
+        public void finish() throws IOException {
+            out.writeByte(END);
+            writeChecksum();
+        }
+
+        private void writeChecksum() throws IOException {
+            out.writeLong(rows);
+            out.writeLong(checked.getChecksum().getValue());
+        }
+
+        public long rows() {
+            return rows;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    public static class Reader implements Closeable {
+
+        private final File file;
+        private final CheckedInputStream checked;
+        private final DataInputStream in;
+        final String schemaVersion;
+        private long rows = 0;
+        private long verifiedRows = 0;
+        private String group;
+        private String key;
+        private long expires;
+        private int partition;
+        private long length;
+        private InputStream value;
+
+        public Reader(File file) throws IOException {
+            this.file = file;
+            checked = new CheckedInputStream(new GZIPInputStream(
+                            new BufferedInputStream(new FileInputStream(file)), 65536), new CRC32());
+            in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException(file + " is not an H22 export");
+            }
+            int version = in.readInt();
+            if (version > VERSION) {
+                in.close();
+                throw new IOException(file + " is export version " + version + ", only up to "
+                                + VERSION + " is supported");
+            }
+            schemaVersion = in.readUTF();
+        }
+
+        /**
+         * Moves to the next row, skipping whatever is left of the current value. Returns false at
+         * the end of the file, once its row count and checksum have been verified
+         */
+        public boolean next() throws IOException {
+            if (value != null) {
+                IOUtils.skip(value, Long.MAX_VALUE);
+                value = null;
+            }
+            byte type = in.readByte();
+            while (type == BLOCK) {
+                verify();
+                type = in.readByte();
+            }
+            if (type == END) {
+                verify();
+                return false;
+            }
+            if (type != ROW) {
+                throw new IOException(file + " is corrupt, unknown record " + type);
+            }
+            group = in.readUTF();
+            key = in.readUTF();
+            expires = in.readLong();
+            partition = in.readInt();
+            length = in.readLong();
+            BoundedInputStream bounded = new BoundedInputStream(in, length);
+            bounded.setPropagateClose(false);
+            value = bounded;
+            rows++;
+            return true;
+        }
+
+        private void verify() throws IOException {
+            long count = in.readLong();
+            long expected = checked.getChecksum().getValue();
+            if (count != rows || in.readLong() != expected) {
+                throw new IOException(file + " is corrupt, checksum or row count does not match");
+            }
+            verifiedRows = rows;
+        }
+
+        /**
+         * Rows read so far that a checksum has vouched for. The current row never is, the
+         * checksum after it is read by the next call to {@link #next()}
+         */
+        public long verifiedRows() {
+            return verifiedRows;
+        }
+
+        public String group() {
+            return group;
+        }
+
+        public String key() {
+            return key;
+        }
+
+        public long expires() {
+            return expires;
+        }
+
+        public int partition() {
+            return partition;
+        }
+
+        public long length() {
+            return length;
+        }
+
+        /**
+         * The serialized value of the current row, readable until {@link #next()}
+         */
+        public InputStream value() {
+            return value;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -1,14 +1,21 @@
 package com.dotcms.hazelcast.mapstore;
 
 import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariConfigMXBean;
 import com.zaxxer.hikari.HikariDataSource;
 
 
@@ -22,13 +29,34 @@ public class H22HikariPool {
 	final int maxPoolSize = HazelH2PropertyBundle.getIntProperty("mapstore.h22.db.poolsize.max", 500);
 	final int connectionTimeout = HazelH2PropertyBundle.getIntProperty("mapstore.h22.db.connection.timeout", 1000);
 	final int setLeakDetectionThreshold = HazelH2PropertyBundle.getIntProperty("mapstore.h22.db.leak.detection.timeout", 0);
+	// size of the pool reserved for reads, <1 means reads share the pool with writes
+	final int maxReadPoolSize = HazelH2PropertyBundle.getIntProperty("mapstore.h22.db.read.poolsize.max", 0);
+	final int readConnectionTimeout = HazelH2PropertyBundle.getIntProperty("mapstore.h22.db.read.connection.timeout", connectionTimeout);
+	// statements running longer than this are cancelled by h2, <1 lets them run
+	final int queryTimeout = HazelH2PropertyBundle.getIntProperty("mapstore.h22.db.query.timeout.milliseconds", 5000);
 	final HikariDataSource datasource;
+	final HikariDataSource readDatasource;
 	final String folderName;
 	boolean running = false;
+	// compact schema group dictionary of this db, cache_group -> group_id and back
+	final Map<String, Integer> groupIds = new ConcurrentHashMap<>();
+	final Map<Integer, String> groupNames = new ConcurrentHashMap<>();
+	// time of the last generation named, so two generations never share a folder
+	private static final AtomicLong lastGeneration = new AtomicLong();
 	final String extraParms = HazelH2PropertyBundle.getProperty("mapstore.h22.db.extra.params", ";MVCC=TRUE;DB_CLOSE_ON_EXIT=FALSE"); //;LOCK_MODE=0;DB_CLOSE_ON_EXIT=FALSE;FILE_LOCK=NO
 	
 	public H22HikariPool(String dbRoot, int dbNumber) {
-		this(dbRoot,dbNumber,new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()) );
+		this(dbRoot,dbNumber,newGeneration());
+	}
+
+	/**
+	 * Name of a new db generation, its creation time to the millisecond. Generations named in the
+	 * same millisecond are a millisecond apart, so the newest is always the greatest name
+	 */
+	static String newGeneration() {
+		long time = lastGeneration.accumulateAndGet(System.currentTimeMillis(),
+				(last, now) -> Math.max(last + 1, now));
+		return new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss-SSS").format(new Date(time));
 	}
 	
 	public H22HikariPool(String dbRoot, int dbNumber, String database) {
@@ -38,6 +66,7 @@ public class H22HikariPool {
 		folderName = dbRoot  + File.separator  + dbNumber +File.separator 
 				+ database;
 		datasource = getDatasource();
+		readDatasource = (maxReadPoolSize > 0) ? getReadDatasource() : null;
 		running = true;
 	}
 	
@@ -48,12 +77,15 @@ public class H22HikariPool {
 
 	private String getDbUrl() {
 		String params = extraParms;
+		if (queryTimeout > 0) {
+			params += ";QUERY_TIMEOUT=" + queryTimeout;
+		}
 		new File(folderName).mkdirs();
 		String ret = "jdbc:h2:" + folderName + File.separator + "cache" + params;
 		return ret;
 	}
 
-	private HikariDataSource getDatasource() {
+	private HikariConfig getConfig() {
 
 		HikariConfig config = new HikariConfig();
 		config.setDataSourceClassName("org.h2.jdbcx.JdbcDataSource");
@@ -61,17 +93,69 @@ public class H22HikariPool {
 		config.addDataSourceProperty("URL", getDbUrl());
 		config.addDataSourceProperty("user", "sa");
 		config.addDataSourceProperty("password", "sa");
+		if(setLeakDetectionThreshold>0){
+			config.setLeakDetectionThreshold(setLeakDetectionThreshold);
+		}
+		return config;
+	}
+
+	private HikariDataSource getDatasource() {
+
+		HikariConfig config = getConfig();
+		config.setPoolName("h22-" + dbNumber);
 		config.setMaximumPoolSize(maxPoolSize);
 		config.setConnectionTimeout(connectionTimeout);
         Logger logger = Logger.getLogger(this.getClass().getName());
         logger.info("H22 on disk cache:" + getDbUrl());
-		if(setLeakDetectionThreshold>0){
-			config.setLeakDetectionThreshold(setLeakDetectionThreshold);
-		}
 		return new HikariDataSource(config);
 
 	}
 
+	/**
+	 * Same db, own connections: read only, read committed and always autocommit, so a burst of
+	 * writes can not use up the connections loads are waiting for
+	 */
+	private HikariDataSource getReadDatasource() {
+
+		HikariConfig config = getConfig();
+		config.setPoolName("h22-read-" + dbNumber);
+		config.setMaximumPoolSize(maxReadPoolSize);
+		config.setConnectionTimeout(readConnectionTimeout);
+		config.setReadOnly(true);
+		config.setAutoCommit(true);
+		config.setTransactionIsolation("TRANSACTION_READ_COMMITTED");
+		return new HikariDataSource(config);
+
+	}
+
+	/**
+	 * Applies the pool settings that hikari can change while running: sizes, connection timeouts
+	 * and leak detection. The query timeout and db params only apply to new dbs
+	 */
+	public void configure(H22Config config) {
+		configure(datasource.getHikariConfigMXBean(),
+				config.getInt("mapstore.h22.db.poolsize.max", maxPoolSize, 1, Integer.MAX_VALUE),
+				config.getInt("mapstore.h22.db.connection.timeout", connectionTimeout, 250, Integer.MAX_VALUE),
+				config.getInt("mapstore.h22.db.leak.detection.timeout", setLeakDetectionThreshold, 0, Integer.MAX_VALUE));
+		if (readDatasource != null) {
+			int timeout = config.getInt("mapstore.h22.db.connection.timeout", connectionTimeout, 250, Integer.MAX_VALUE);
+			configure(readDatasource.getHikariConfigMXBean(),
+					config.getInt("mapstore.h22.db.read.poolsize.max", maxReadPoolSize, 1, Integer.MAX_VALUE),
+					config.getInt("mapstore.h22.db.read.connection.timeout", timeout, 250, Integer.MAX_VALUE),
+					config.getInt("mapstore.h22.db.leak.detection.timeout", setLeakDetectionThreshold, 0, Integer.MAX_VALUE));
+		}
+	}
+
+	private void configure(HikariConfigMXBean pool, int maxSize, int timeout, int leakDetection) {
+		if (pool.getMinimumIdle() > maxSize) {
+			pool.setMinimumIdle(maxSize);
+		}
+		pool.setMaximumPoolSize(maxSize);
+		pool.setConnectionTimeout(timeout);
+		// hikari only takes thresholds of at least 2s, 0 turns it off
+		pool.setLeakDetectionThreshold(leakDetection >= 2000 ? leakDetection : 0);
+	}
+
 	public boolean running() {
 		return running;
 	}
@@ -84,8 +168,74 @@ public class H22HikariPool {
 		return Optional.of(datasource.getConnection());
 	}
 
+	public Optional<Connection> readConnection() throws SQLException {
+		if (readDatasource == null) {
+			return connection();
+		}
+		if (!running) {
+			return Optional.empty();
+		}
+
+		return Optional.of(readDatasource.getConnection());
+	}
+
+	/**
+	 * A connection whose statements are not cancelled by the query timeout, for scans and bulk
+	 * writes that are expected to run long. The timeout is put back when it is closed
+	 */
+	public Optional<Connection> unboundedConnection() throws SQLException {
+		return unbounded(connection(), datasource);
+	}
+
+	public Optional<Connection> unboundedReadConnection() throws SQLException {
+		return unbounded(readConnection(), (readDatasource != null) ? readDatasource : datasource);
+	}
+
+	private Optional<Connection> unbounded(Optional<Connection> opt, HikariDataSource source) throws SQLException {
+		if (!opt.isPresent() || queryTimeout <= 0) {
+			return opt;
+		}
+		Connection c = opt.get();
+		try (Statement stmt = c.createStatement()) {
+			stmt.execute("SET QUERY_TIMEOUT 0");
+		} catch (SQLException e) {
+			c.close();
+			throw e;
+		}
+		return Optional.of((Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+					if ("close".equals(method.getName())) {
+						try (Statement stmt = c.createStatement()) {
+							stmt.execute("SET QUERY_TIMEOUT " + queryTimeout);
+						} catch (SQLException e) {
+							// never hand it out again without its timeout
+							source.evictConnection(c);
+						}
+					}
+					try {
+						return method.invoke(c, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				}));
+	}
+
+	/**
+	 * Connections currently handed out by both pools
+	 */
+	public int activeConnections() {
+		int active = datasource.getHikariPoolMXBean().getActiveConnections();
+		if (readDatasource != null) {
+			active += readDatasource.getHikariPoolMXBean().getActiveConnections();
+		}
+		return active;
+	}
+
 	public void close() {
 		running = false;
+		if (readDatasource != null) {
+			readDatasource.close();
+		}
 		datasource.close();
 	}
 	
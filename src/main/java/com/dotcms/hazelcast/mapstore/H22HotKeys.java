@@ -0,0 +1,174 @@
+package com.dotcms.hazelcast.mapstore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Counts how often the keys of each region are loaded and stored, and periodically writes the
+ * hottest keys of every region to a small file so a restarted member can warm its maps from
+ * them instead of scanning the whole region.
+ */
+public class H22HotKeys {
+
+    private static final int MAGIC = 0x48324b31; // H2K1
+
+    private static final Logger logger = Logger.getLogger(H22HotKeys.class.getName());
+
+    private static final Comparator<Entry<String, AtomicLong>> BY_COUNT =
+                    (a, b) -> Long.compare(a.getValue().get(), b.getValue().get());
+
+    private final Map<String, Map<String, AtomicLong>> regions = new ConcurrentHashMap<>();
+    final File folder;
+    volatile int maxTracked;
+    volatile int snapshotSize;
+
+    public H22HotKeys(File folder, int maxTracked, int snapshotSize) {
+        this.folder = folder;
+        configure(maxTracked, snapshotSize);
+    }
+
+    /**
+     * Changes how many keys are tracked and written, keys tracked past a lowered maxTracked age
+     * out with the next snapshots
+     */
+    public void configure(int maxTracked, int snapshotSize) {
+        this.maxTracked = maxTracked;
+        this.snapshotSize = snapshotSize;
+    }
+
+    /**
+     * Counts an access to the key. Once a region tracks maxTracked keys, only the keys it already
+     * knows are counted until the next snapshot ages the cold ones out
+     */
+    public void touch(String region, String key) {
+        if (maxTracked < 1) {
+            return;
+        }
+        Map<String, AtomicLong> counts = regions.computeIfAbsent(region, r -> new ConcurrentHashMap<>());
+        AtomicLong count = counts.get(key);
+        if (count == null) {
+            if (counts.size() >= maxTracked) {
+                return;
+            }
+            count = counts.computeIfAbsent(key, k -> new AtomicLong());
+        }
+        count.incrementAndGet();
+    }
+
+    public void remove(String region, String key) {
+        Map<String, AtomicLong> counts = regions.get(region);
+        if (counts != null) {
+            counts.remove(key);
+        }
+    }
+
+    public void remove(String region) {
+        regions.remove(region);
+    }
+
+    public void removeAll() {
+        regions.clear();
+    }
+
+    /**
+     * Writes the hottest keys of each region to disk, hottest first, then halves every count so
+     * the ranking follows recent traffic
+     */
+    public void snapshot() {
+        folder.mkdirs();
+        for (Entry<String, Map<String, AtomicLong>> region : regions.entrySet()) {
+            try {
+                write(region.getKey(), hottest(region.getValue()));
+            } catch (IOException e) {
+                logger.warning("unable to write hot keys for " + region.getKey() + " : "
+                                + e.getMessage());
+            }
+            region.getValue().entrySet().removeIf(e -> e.getValue().updateAndGet(c -> c / 2) == 0);
+        }
+    }
+
+    private List<String> hottest(Map<String, AtomicLong> counts) {
+        PriorityQueue<Entry<String, AtomicLong>> top = new PriorityQueue<>(BY_COUNT);
+        for (Entry<String, AtomicLong> entry : counts.entrySet()) {
+            if (top.size() < snapshotSize) {
+                top.add(entry);
+            } else if (BY_COUNT.compare(entry, top.peek()) > 0) {
+                top.poll();
+                top.add(entry);
+            }
+        }
+        List<String> keys = new ArrayList<>(top.size());
+        while (!top.isEmpty()) {
+            keys.add(top.poll().getKey());
+        }
+        Collections.reverse(keys);
+        return keys;
+    }
+
+    private void write(String region, List<String> keys) throws IOException {
+        File file = file(region);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(region);
+            out.writeInt(keys.size());
+            for (String key : keys) {
+                out.writeUTF(key);
+            }
+        }
+        java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The hot keys last written for the region, hottest first. Snapshots older than maxAgeMillis
+     * are ignored, their data would not have been recovered anyway
+     */
+    public List<String> read(String region, long maxAgeMillis) {
+        File file = file(region);
+        if (!file.exists() || file.lastModified() + maxAgeMillis < System.currentTimeMillis()) {
+            return Collections.emptyList();
+        }
+        try (DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || !region.equals(in.readUTF())) {
+                return Collections.emptyList();
+            }
+            int size = in.readInt();
+            List<String> keys = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                keys.add(in.readUTF());
+            }
+            return keys;
+        } catch (IOException e) {
+            logger.warning("unable to read hot keys for " + region + " : " + e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    private File file(String region) {
+        return new File(folder, Hashing.murmur3_128().hashString(region, StandardCharsets.UTF_8)
+                        + ".keys");
+    }
+}
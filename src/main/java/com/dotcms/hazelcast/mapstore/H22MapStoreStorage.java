@@ -1,42 +1,83 @@
 package com.dotcms.hazelcast.mapstore;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Arrays;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 import org.apache.commons.collections.map.LRUMap;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.comparator.LastModifiedFileComparator;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.filefilter.DirectoryFileFilter;
+import org.apache.commons.io.input.CountingInputStream;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zaxxer.hikari.pool.HikariPool.PoolInitializationException;
 
 
 
+/**
+ * Stores the values of every map over a number of h2 dbs, each with its own pools, breaker and
+ * background upkeep.
+ * <p>
+ * h2 only gives the space of deleted and overwritten rows back when a db is shut down, so a
+ * compaction is an offline pause of one db at a time: the db is closed, compacted and reopened.
+ * While it is, gets of its keys miss, and puts, removes and bulk operations wait for it, at
+ * most mapstore.h22.compact.wait.milliseconds. Compactions are held back for dbs bigger than
+ * mapstore.h22.compact.max.megabytes, and until a db has been quiet for
+ * mapstore.h22.compact.quiet.milliseconds, or was put off for
+ * mapstore.h22.compact.max.deferral.milliseconds.
+ */
 public class H22MapStoreStorage {
 
 
@@ -45,6 +86,10 @@ public class H22MapStoreStorage {
 
     final static String TABLE_PREFIX = "cache_table_";
 
+    // bump this whenever the table layout changes, recovered dbs with another version are
+    // not reused
+    final static int SCHEMA_VERSION = 6;
+
     @SuppressWarnings("unchecked")
     private final static Map<Object, Object> DONT_CACHE_ME =
                     Collections.synchronizedMap(new LRUMap(1000));
@@ -58,27 +103,376 @@ public class H22MapStoreStorage {
                     HazelH2PropertyBundle.getIntProperty("mapstore.h22.number.of.tables.per.db", 9);
 
     // limit error message to every 5 seconds;
-    private final int limitErrorLogMillis = HazelH2PropertyBundle
-                    .getIntProperty("mapstore.h22.limit.one.error.log.per.milliseconds", 5000);
+    private volatile int limitErrorLogMillis;
+
+    // calls to a db are counted over windows this long to decide whether its breaker opens
+    private volatile int breakerWindowMillis;
+
+    // calls a window needs before the breaker can open
+    private volatile int breakerMinimumCalls;
+
+    // share of failed or slow calls in a window that opens the breaker
+    private volatile double breakerFailureRate;
 
-    // create a new cache store if our errors are greater that this. Anything <1
-    // will disable auto recover
-    private final long recoverAfterErrors =
-                    HazelH2PropertyBundle.getIntProperty("mapstore.h22.recover.after.errors", 5000);
+    // calls slower than this count as failed
+    private volatile int breakerSlowCallMillis;
+
+    // how long an open breaker fails calls before it lets a probe through
+    private volatile int breakerOpenMillis;
+
+    // create a new cache store for a db whose breaker failed this many probes in a row. Anything
+    // <1 will disable auto recover
+    private volatile int recoverAfterFailedProbes;
+
+    // ids written or removed while their db failed, at most this many per db
+    private volatile int maxStaleIds;
 
     // try to recover with h2 if within this time (30m defualt)
     private final long recoverOnRestart = HazelH2PropertyBundle.getIntProperty(
                     "mapstore.h22.recover.if.restarted.in.milliseconds", 1000 * 60 * 30);
+    // index rows by hazelcast partition so a member can list just the keys of the partitions it
+    // owns
+    private final boolean partitionAware =
+                    HazelH2PropertyBundle.getBooleanProperty("mapstore.h22.partition.aware", false);
+
+    // store groups as ids into a per db dictionary and keys as utf-8 bytes
+    private final boolean compactSchema;
+
+    // number of threads used to recover the dbs on startup, defaults to one per db
+    private final int startupThreads = HazelH2PropertyBundle
+                    .getIntProperty("mapstore.h22.startup.threads", numberOfDbs);
+
+    // how often the hottest keys of each region are written to disk, anything <1 disables
+    // hot key tracking
+    private final int hotKeysSnapshotMillis = HazelH2PropertyBundle
+                    .getIntProperty("mapstore.h22.hotkeys.snapshot.interval.milliseconds", 60000);
+
+    // records the ring of the access trace holds between flushes, anything <1 disables tracing
+    private final int traceBufferSize =
+                    HazelH2PropertyBundle.getIntProperty("mapstore.h22.trace.buffer.size", 0);
+
+    // how often the access trace is written to disk
+    private final int traceFlushMillis = HazelH2PropertyBundle
+                    .getIntProperty("mapstore.h22.trace.flush.milliseconds", 1000);
+
+    // how often expired rows are purged from disk
+    private final int reaperIntervalMillis = HazelH2PropertyBundle
+                    .getIntProperty("mapstore.h22.ttl.reaper.interval.milliseconds", 60000);
+
+    // max rows the reaper deletes per statement
+    private volatile int reaperBatchSize;
+
+    // pause between reaper batches so it does not hog the dbs
+    private volatile int reaperPauseMillis;
+
+    // region -> time to live in ms, 0 means rows never expire
+    private final Map<String, Long> ttlMillis = new ConcurrentHashMap<>();
+
+    // max rows per db before the least recently used are evicted, anything <1 means no limit
+    private volatile int quotaMaxRows;
+
+    // max size of the db files per db before the least recently used rows are evicted,
+    // anything <1 means no limit
+    private volatile int quotaMaxMegabytes;
+
+    // estimated bytes a row takes besides its key and value, ids, columns and indexes
+    private static final long ROW_OVERHEAD_BYTES = 64;
+
+    // how often dbs are checked against the quota
+    private final int quotaCheckMillis = HazelH2PropertyBundle
+                    .getIntProperty("mapstore.h22.quota.check.interval.milliseconds", 60000);
+
+    // how often batched access times are written to the rows
+    private final int accessFlushMillis = HazelH2PropertyBundle
+                    .getIntProperty("mapstore.h22.quota.access.flush.milliseconds", 5000);
+
+    // max access times held per db between flushes, later reads are not recorded
+    private volatile int accessBatchMax;
+
+    // values bigger than this are streamed into a blob instead of being buffered on the heap
+    private final int spillBytes =
+                    HazelH2PropertyBundle.getIntProperty("mapstore.h22.stream.spill.bytes", 262144);
+
+    // number of serialization buffers kept for reuse
+    private final int pooledBuffers =
+                    HazelH2PropertyBundle.getIntProperty("mapstore.h22.stream.pooled.buffers", 32);
+
+    private final H22ValueStream.Pool valueBuffers = new H22ValueStream.Pool(spillBytes, pooledBuffers);
+
+    // rows read per query when exporting and written per batch when importing
+    private volatile int exportBatchSize;
+
+    // skip puts of a value that is already stored, e.g. when hazelcast stores an entry again
+    // after a migration or a write-behind retry
+    private volatile boolean skipUnchanged;
+
+    // hashes of the values last put kept in memory per db, so most unchanged puts are found
+    // without reading the row. Anything <1 compares against the row every time
+    private final int valueHashesPerDb = HazelH2PropertyBundle
+                    .getIntProperty("mapstore.h22.skip.unchanged.hashes.per.db", 50000);
+
+    // db -> cache_id -> hash of the value last written. A put compares, writes and remembers
+    // the hash under the lock of its id, so concurrent puts of an id can not leave a hash
+    // behind that is not the stored one
+    private final List<Cache<String, Long>> valueHashes = new ArrayList<>();
+    // db -> bulk deletes started, a put only keeps the hash it remembered if none started since
+    // it began, as the row may be gone with it
+    private final AtomicLongArray bulkDeletes = new AtomicLongArray(numberOfDbs);
+    // run by a put between writing the row and remembering its hash, for tests
+    volatile Runnable afterUpsert;
+    private final Striped<Lock> upsertLocks = Striped.lock(1024);
+    private final AtomicLong skippedPuts = new AtomicLong();
+    private final AtomicLong skippedBytes = new AtomicLong();
+
+    // values of at least this many serialized bytes are stored once per db in cache_values, by
+    // their sha-256, and rows holding them only point there. Anything <1 keeps every value in
+    // its row
+    private final int dedupMinBytes =
+                    HazelH2PropertyBundle.getIntProperty("mapstore.h22.dedup.min.bytes", 0);
+    private final AtomicLong dedupedPuts = new AtomicLong();
+    private final AtomicLong dedupedBytes = new AtomicLong();
+
+    // every db is checkpointed and, if needed, compacted once per interval, the dbs spread
+    // over it one after the other. Anything <1 disables compaction
+    private final int compactIntervalMillis = HazelH2PropertyBundle
+                    .getIntProperty("mapstore.h22.compact.interval.milliseconds", 600000);
+
+    // a db is only taken offline to compact once nothing used it for this long
+    private volatile int compactQuietMillis;
+
+    // a db that is never quiet that long is compacted anyway once it was put off for this long
+    private volatile int compactMaxDeferralMillis;
+
+    // db files smaller than this are not compacted
+    private volatile int compactMinMegabytes;
+
+    // compact once the db files grew by this many percent since they were last compacted
+    private volatile int compactGrowthPercent;
+
+    // db files bigger than this are not compacted, the db would be offline for too long
+    private volatile int compactMaxMegabytes;
+
+    // db -> last get, put or remove
+    private final AtomicLongArray lastUsed = new AtomicLongArray(numberOfDbs);
+
+    // db -> size of its files after it was last compacted
+    private final long[] compactedBytes = new long[numberOfDbs];
+
+    // db -> when its pending compaction was first put off because the db was in use, 0 if none is
+    private final long[] deferredSince = new long[numberOfDbs];
+
+    // dbs offline while they compact: gets miss, puts, removes and bulk operations wait for
+    // them
+    private final Set<Integer> compacting = ConcurrentHashMap.newKeySet();
+    // db -> System.nanoTime() its last compaction ended at, calls begun before failed under it
+    private final AtomicLongArray compactionEnds = new AtomicLongArray(numberOfDbs);
+    // puts, removes and bulk operations wait this long for a compacting db before they give up
+    // on it
+    private volatile int compactWaitMillis;
+    // compactions run here rather than on the maintenance thread, which they would hold up
+    ScheduledExecutorService compactor;
+    private int nextCompaction = 0;
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+    private final AtomicLong deferredCompactions = new AtomicLong();
+    private volatile long maxCompactionPauseMillis = 0;
+
+    // ids each db's bloom filter is sized for, anything <1 disables the filters
+    private final int bloomExpectedInsertions = HazelH2PropertyBundle
+                    .getIntProperty("mapstore.h22.bloom.expected.insertions", 0);
+
+    // false positive probability the bloom filters are sized for
+    private volatile double bloomFpp;
+
+    // how often the bloom filters are rebuilt to forget removed ids
+    private final int bloomRebuildMillis = HazelH2PropertyBundle
+                    .getIntProperty("mapstore.h22.bloom.rebuild.interval.milliseconds", 3600000);
+
+    // db -> filter of the ids in it, null while unknown. Rebuilds go to the rebuilding filter
+    // which also gets every put until it replaces the current one
+    private final AtomicReferenceArray<H22BloomFilter> filters =
+                    new AtomicReferenceArray<>(numberOfDbs);
+    private final AtomicReferenceArray<H22BloomFilter> rebuilding =
+                    new AtomicReferenceArray<>(numberOfDbs);
+    // run by a rebuild between loading the ids and replacing the filter, for tests
+    volatile Runnable afterFilterLoad;
+    private final AtomicLong filteredMisses = new AtomicLong();
+
+    // cache_id -> load in progress, concurrent gets of the same id wait for it instead of
+    // reading and deserializing the row again
+    final Map<String, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();
+    private final AtomicLong coalescedLoads = new AtomicLong();
+    private final AtomicLong coalescedTimeouts = new AtomicLong();
+
+    // longest a get waits for a load of the same id before it misses, the query timeout or, if
+    // queries are not bounded, the time after which a call counts as slow
+    private volatile int coalescedWaitMillis;
+
+    // db -> cache_id -> last read time, waiting to be written
+    private final List<Map<String, Long>> pendingAccess = new ArrayList<>();
+
+    private final H22CircuitBreaker[] breakers = new H22CircuitBreaker[numberOfDbs];
+
+    // db -> ids whose put or remove did not make it while the db was failing. Their rows in h2
+    // may be out of date, so they are read as misses until they are written again or purged
+    private final List<Set<String>> staleIds = new ArrayList<>();
+    private final boolean[] staleOverflow = new boolean[numberOfDbs];
+
+    // db -> group -> rows of migrated partitions still to be deleted. The group reads as misses
+    // on the db until they are
+    private final List<Map<String, PartitionPurge>> partitionPurges = new ArrayList<>();
+
+    // whether a db was recovered from a previous run rather than built empty
+    private volatile boolean recovered;
+
     private long lastLog = System.currentTimeMillis();
     private long[] errorCounter = new long[numberOfDbs];
+    private final long[] recoveryMillis = new long[numberOfDbs];
     private final H22HikariPool[] pools = new H22HikariPool[numberOfDbs];
     private int failedFlushAlls = 0;
+    // rebuild the dbs instead of truncating them on removeAll
+    private volatile boolean rebuildOnRemoveAll;
+    // rebuild the dbs once this many truncates in a row failed
+    private volatile int rebuildOnRemoveAllFailures;
+    private final Consumer<H22Config> reconfigure = this::configure;
     private static final Logger logger = Logger.getLogger(H22MapStoreStorage.class.getName());
     final String dbRoot;
+    final H22HotKeys hotKeys;
+    // null unless tracing is on
+    final H22AccessTrace trace;
+    // serialized size of the value the calling thread last put or got, for the access trace
+    private final ThreadLocal<long[]> valueBytes = ThreadLocal.withInitial(() -> new long[] {-1});
+    private ScheduledExecutorService maintenance;
+
+    // open storages by dbRoot, shared by all the maps stored there
+    private static final Map<String, H22MapStoreStorage> OPEN = new HashMap<>();
+    private int references = 0;
 
 
     public H22MapStoreStorage(final String dbRoot) {
+        this(dbRoot, HazelH2PropertyBundle.getBooleanProperty("mapstore.h22.compact.schema", false));
+    }
+
+    H22MapStoreStorage(final String dbRoot, final boolean compactSchema) {
         this.dbRoot = dbRoot;
+        this.compactSchema = compactSchema;
+        this.hotKeys = new H22HotKeys(new File(dbRoot, "hotkeys"), 0, 0);
+        for (int db = 0; db < numberOfDbs; db++) {
+            pendingAccess.add(new ConcurrentHashMap<>());
+            staleIds.add(ConcurrentHashMap.newKeySet());
+            partitionPurges.add(new ConcurrentHashMap<>());
+            breakers[db] = new H22CircuitBreaker();
+            // nothing began before a compaction yet, whatever the sign of nanoTime
+            compactionEnds.set(db, System.nanoTime());
+            valueHashes.add(CacheBuilder.newBuilder()
+                            .maximumSize(Math.max(0, valueHashesPerDb)).build());
+        }
+        configure(H22Config.current());
+        this.trace = (traceBufferSize > 0) ? new H22AccessTrace(new File(dbRoot, "trace"),
+                        traceBufferSize, HazelH2PropertyBundle.getIntProperty(
+                                        "mapstore.h22.trace.file.max.megabytes", 256))
+                        : null;
+    }
+
+
+    /**
+     * Applies the settings that can change while running, on construction and on every config
+     * reload. The number and layout of the dbs, and how often maintenance runs, are fixed until
+     * restart
+     */
+    void configure(H22Config config) {
+        limitErrorLogMillis = config.getInt("mapstore.h22.limit.one.error.log.per.milliseconds",
+                        5000, 0, Integer.MAX_VALUE);
+        breakerWindowMillis = config.getInt("mapstore.h22.breaker.window.milliseconds", 10000, 1,
+                        Integer.MAX_VALUE);
+        breakerMinimumCalls = config.getInt("mapstore.h22.breaker.minimum.calls", 20, 1,
+                        Integer.MAX_VALUE);
+        breakerFailureRate = config.getDouble("mapstore.h22.breaker.failure.rate", 0.5, 0.01, 1);
+        breakerSlowCallMillis = config.getInt("mapstore.h22.breaker.slow.call.milliseconds", 1000,
+                        1, Integer.MAX_VALUE);
+        int queryTimeout = config.getInt("mapstore.h22.db.query.timeout.milliseconds", 5000);
+        coalescedWaitMillis = (queryTimeout > 0) ? queryTimeout : breakerSlowCallMillis;
+        breakerOpenMillis = config.getInt("mapstore.h22.breaker.open.milliseconds", 5000, 1,
+                        Integer.MAX_VALUE);
+        recoverAfterFailedProbes = config.getInt("mapstore.h22.recover.after.failed.probes", 12);
+        maxStaleIds = config.getInt("mapstore.h22.breaker.stale.ids.max", 100000, 0,
+                        Integer.MAX_VALUE);
+        reaperBatchSize = config.getInt("mapstore.h22.ttl.reaper.batch.size", 1000, 1,
+                        Integer.MAX_VALUE);
+        reaperPauseMillis = config.getInt("mapstore.h22.ttl.reaper.pause.milliseconds", 100, 0,
+                        Integer.MAX_VALUE);
+        quotaMaxRows = config.getInt("mapstore.h22.quota.max.rows.per.db", 0);
+        quotaMaxMegabytes = config.getInt("mapstore.h22.quota.max.megabytes.per.db", 0);
+        accessBatchMax = config.getInt("mapstore.h22.quota.access.batch.max", 10000, 0,
+                        Integer.MAX_VALUE);
+        exportBatchSize = config.getInt("mapstore.h22.export.batch.size", 1000, 1,
+                        Integer.MAX_VALUE);
+        skipUnchanged = config.getBoolean("mapstore.h22.skip.unchanged", true);
+        compactQuietMillis = config.getInt("mapstore.h22.compact.quiet.milliseconds", 2000, 0,
+                        Integer.MAX_VALUE);
+        compactMaxDeferralMillis = config.getInt("mapstore.h22.compact.max.deferral.milliseconds",
+                        3600000, 0, Integer.MAX_VALUE);
+        compactMinMegabytes = config.getInt("mapstore.h22.compact.min.megabytes", 64, 0,
+                        Integer.MAX_VALUE);
+        compactGrowthPercent = config.getInt("mapstore.h22.compact.growth.percent", 50, 0,
+                        Integer.MAX_VALUE);
+        compactMaxMegabytes = config.getInt("mapstore.h22.compact.max.megabytes", 2048, 1,
+                        Integer.MAX_VALUE);
+        compactWaitMillis = config.getInt("mapstore.h22.compact.wait.milliseconds", 30000, 0,
+                        Integer.MAX_VALUE);
+        bloomFpp = config.getDouble("mapstore.h22.bloom.fpp", 0.01, 0.000001, 0.5);
+        rebuildOnRemoveAll = config.getBoolean("mapstore.h22.rebuild.on.removeAll", false);
+        rebuildOnRemoveAllFailures = config.getInt(
+                        "mapstore.h22.rebuild.on.removeAll.failure.threshhold", 1, 1,
+                        Integer.MAX_VALUE);
+        ttlMillis.clear();
+        for (H22CircuitBreaker breaker : breakers) {
+            breaker.configure(breakerWindowMillis, breakerMinimumCalls, breakerFailureRate,
+                            breakerSlowCallMillis, breakerOpenMillis);
+        }
+        hotKeys.configure((hotKeysSnapshotMillis > 0) ? config.getInt(
+                        "mapstore.h22.hotkeys.tracked.per.region", 10000, 0, Integer.MAX_VALUE) : 0,
+                        config.getInt("mapstore.h22.hotkeys.snapshot.size", 1000, 0,
+                                        Integer.MAX_VALUE));
+        for (H22HikariPool pool : pools) {
+            if (pool != null) {
+                pool.configure(config);
+            }
+        }
+    }
+
+    /**
+     * The storage for dbRoot, opened on first use. Every call must be matched by a
+     * {@link #release()}, the last release shuts the storage down
+     */
+    public static H22MapStoreStorage acquire(final String dbRoot) {
+        synchronized (OPEN) {
+            H22MapStoreStorage storage = OPEN.get(dbRoot);
+            if (storage == null) {
+                logger.info("Building H22MapStore:" + dbRoot);
+                storage = new H22MapStoreStorage(dbRoot);
+                try {
+                    storage.init();
+                } catch (Exception e) {
+                    storage.shutdown();
+                    throw new RuntimeException(e);
+                }
+                OPEN.put(dbRoot, storage);
+            }
+            storage.references++;
+            return storage;
+        }
+    }
+
+    public void release() {
+        synchronized (OPEN) {
+            if (--references > 0) {
+                return;
+            }
+            OPEN.remove(dbRoot);
+            // shut down under the lock so the dbs are closed before anyone can reopen them
+            shutdown();
+        }
     }
 
 
@@ -98,13 +492,96 @@ public class H22MapStoreStorage {
 
 
     public void init() throws Exception {
+        long start = System.nanoTime();
 
-        // init the databases
-        for (int i = 0; i < numberOfDbs; i++) {
-            getPool(i, true);
+        // init the databases in parallel, each db is its own h2 instance
+        ExecutorService recovery = Executors.newFixedThreadPool(
+                        Math.max(1, Math.min(startupThreads, numberOfDbs)),
+                        daemonThreads("h22-recover-%d"));
+        try {
+            List<Future<?>> shards = new ArrayList<>();
+            for (int i = 0; i < numberOfDbs; i++) {
+                final int db = i;
+                shards.add(recovery.submit(() -> recoverShard(db)));
+            }
+            for (Future<?> shard : shards) {
+                shard.get();
+            }
+        } catch (ExecutionException e) {
+            throw new SQLException("Unable to recover H22 Cache", e.getCause());
+        } finally {
+            recovery.shutdown();
         }
         isInitialized = true;
+        H22Config.addListener(reconfigure);
+        logger.info("H22 Cache ready, " + numberOfDbs + " dbs in "
+                        + TimeUnit.MILLISECONDS.convert(System.nanoTime() - start,
+                                        TimeUnit.NANOSECONDS)
+                        + "ms");
+
+        cleanStaleGenerations();
+
+        maintenance = Executors.newSingleThreadScheduledExecutor(daemonThreads("h22-maintenance-%d"));
+        if (hotKeysSnapshotMillis > 0) {
+            maintenance.scheduleWithFixedDelay(hotKeys::snapshot, hotKeysSnapshotMillis,
+                            hotKeysSnapshotMillis, TimeUnit.MILLISECONDS);
+        }
+        if (bloomExpectedInsertions > 0 && bloomRebuildMillis > 0) {
+            maintenance.scheduleWithFixedDelay(this::rebuildFilters, bloomRebuildMillis,
+                            bloomRebuildMillis, TimeUnit.MILLISECONDS);
+        }
+        if (reaperIntervalMillis > 0) {
+            maintenance.scheduleWithFixedDelay(this::reapExpired, reaperIntervalMillis,
+                            reaperIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        if (trace != null) {
+            maintenance.scheduleWithFixedDelay(trace::flush, traceFlushMillis, traceFlushMillis,
+                            TimeUnit.MILLISECONDS);
+        }
+        maintenance.scheduleWithFixedDelay(this::purgeStaleIds, breakerOpenMillis,
+                        breakerOpenMillis, TimeUnit.MILLISECONDS);
+        maintenance.scheduleWithFixedDelay(this::purgePartitions, breakerOpenMillis,
+                        breakerOpenMillis, TimeUnit.MILLISECONDS);
+        // scheduled either way, a quota can be set on a running store
+        maintenance.scheduleWithFixedDelay(this::flushAccessTimes, accessFlushMillis,
+                        accessFlushMillis, TimeUnit.MILLISECONDS);
+        maintenance.scheduleWithFixedDelay(this::evictOverQuota, quotaCheckMillis,
+                        quotaCheckMillis, TimeUnit.MILLISECONDS);
+        compactor = Executors.newSingleThreadScheduledExecutor(daemonThreads("h22-compaction-%d"));
+        if (compactIntervalMillis > 0) {
+            int stagger = Math.max(1, compactIntervalMillis / numberOfDbs);
+            compactor.scheduleWithFixedDelay(this::compactNext, stagger, stagger,
+                            TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void recoverShard(final int dbNum) {
+        long start = System.nanoTime();
+        try {
+            logger.info("Initing H22 cache db:" + dbNum);
+            pools[dbNum] = recoverLatestPool(dbNum);
+            if (bloomExpectedInsertions > 0 && filters.get(dbNum) == null) {
+                rebuildFilter(dbNum);
+            }
+        } catch (SQLException e) {
+            logger.severe(e.getMessage());
+        } finally {
+            errorCounter[dbNum] = 0;
+            recoveryMillis[dbNum] = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start,
+                            TimeUnit.NANOSECONDS);
+            logger.info("H22 cache db:" + dbNum + " ready in " + recoveryMillis[dbNum] + "ms");
+        }
+    }
+
+    /**
+     * Time in ms each db took to come up on the last {@link #init()}
+     */
+    public long[] getRecoveryMillis() {
+        return recoveryMillis.clone();
+    }
 
+    static ThreadFactory daemonThreads(String nameFormat) {
+        return new ThreadFactoryBuilder().setDaemon(true).setNameFormat(nameFormat).build();
     }
 
 
@@ -114,21 +591,56 @@ public class H22MapStoreStorage {
 
 
     public void put(String group, String key, Object content) {
+        put(group, key, content, -1);
+    }
+
+    /**
+     * @param partition the hazelcast partition of the key, -1 if unknown
+     */
+    public void put(String group, String key, Object content, int partition) {
 
         // Building the key
         Fqn fqn = new Fqn(group, key);
+        H22CircuitBreaker breaker = breakers[db(fqn)];
+        lastUsed.lazySet(db(fqn), System.currentTimeMillis());
+        // a compacting db is back shortly, the put waits for it rather than going missing
+        if (!awaitCompaction(db(fqn)) || !breaker.allowRequest()) {
+            loading.remove(fqn.id);
+            markStale(fqn);
+            return;
+        }
+        long start = System.nanoTime();
 
         try {
             // Add the given content to the group and for a given key
 
-            doUpsert(fqn, (Serializable) content);
+            // loads already reading the old value must not be joined once we start writing
+            loading.remove(fqn.id);
+            try {
+                doUpsert(fqn, (Serializable) content, partition);
+            } catch (SQLException e) {
+                // the db went offline for a compaction under the put, which tries again once
+                if (!overlapsCompaction(db(fqn), start) || !awaitCompaction(db(fqn))) {
+                    throw e;
+                }
+                doUpsert(fqn, (Serializable) content, partition);
+            }
+            breaker.onSuccess(System.nanoTime() - start);
+            staleIds.get(db(fqn)).remove(fqn.id);
+            hotKeys.touch(group, key);
 
         } catch (ClassCastException e) {
             DONT_CACHE_ME.put(key, fqn.toString());
+            breaker.onSuccess(System.nanoTime() - start);
             handleError(e, fqn);
 
         } catch (Exception e) {
-            handleError(e, fqn);
+            markStale(fqn);
+            if (recordFailure(db(fqn), e, start)) {
+                handleError(e, fqn);
+            }
+        } finally {
+            loading.remove(fqn.id);
         }
     }
 
@@ -140,13 +652,55 @@ public class H22MapStoreStorage {
         long start = System.nanoTime();
         Fqn fqn = new Fqn(group, key);
 
+        // share the read with any get of the same id already in flight
+        CompletableFuture<Object> load = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = loading.putIfAbsent(fqn.id, load);
+        if (inFlight != null) {
+            // a failing db would only keep us waiting behind a load that is stuck on it
+            if (!breakers[db(fqn)].isClosed()) {
+                return null;
+            }
+            coalescedLoads.incrementAndGet();
+            try {
+                return inFlight.get(coalescedWaitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                return null;
+            } catch (TimeoutException e) {
+                coalescedTimeouts.incrementAndGet();
+                return null;
+            }
+        }
+
+        H22CircuitBreaker breaker = breakers[db(fqn)];
+        lastUsed.lazySet(db(fqn), System.currentTimeMillis());
+        if (staleIds.get(db(fqn)).contains(fqn.id) || compacting.contains(db(fqn))
+                        || partitionPurges.get(db(fqn)).containsKey(group)
+                        || !breaker.allowRequest()) {
+            loading.remove(fqn.id, load);
+            load.complete(null);
+            return null;
+        }
+
         try {
             // Get the content from the group and for a given key;
             foundObject = doSelect(fqn);
+            breaker.onSuccess(System.nanoTime() - start);
+            if (foundObject != null) {
+                hotKeys.touch(group, key);
+                recordAccess(fqn);
+            }
 
         } catch (Exception e) {
             foundObject = null;
-            handleError(e, fqn);
+            if (recordFailure(db(fqn), e, start)) {
+                handleError(e, fqn);
+            }
+        } finally {
+            loading.remove(fqn.id, load);
+            load.complete(foundObject);
         }
 
 
@@ -161,14 +715,16 @@ public class H22MapStoreStorage {
 
         logger.info("Flushing H22 cache group:" + fqn
                         + " Note: this can be an expensive operation");
+        hotKeys.remove(groupName);
 
         try {
             for (int db = 0; db < numberOfDbs; db++) {
+                awaitCompaction(db);
+                beginBulkDelete(db);
 
                 for (int table = 0; table < numberOfTablesPerDb; table++) {
                     Connection connection = null;
-                    PreparedStatement stmt = null;
-                    final Optional<Connection> opt = createConnection(true, db);
+                    final Optional<Connection> opt = createBulkConnection(true, db);
 
                     if (!opt.isPresent()) {
                         throw new SQLException(
@@ -178,10 +734,10 @@ public class H22MapStoreStorage {
                     try {
                         connection = opt.get();
                         logger.warning("connection.getAutoCommit():" + connection.getAutoCommit());
-                        stmt = connection.prepareStatement("DELETE from " + TABLE_PREFIX + table
-                                        + " WHERE cache_group = ?");
-                        stmt.setString(1, fqn.group);
-                        stmt.executeUpdate();
+                        final Connection c = connection;
+                        final int group = db;
+                        deleteRows(connection, table, "cache_group = ?",
+                                        stmt -> bindGroup(stmt, 1, c, group, fqn.group, false));
                     } finally {
                         try {
 
@@ -199,12 +755,149 @@ public class H22MapStoreStorage {
         } catch (SQLException e) {
 
             handleError(e, fqn);
+        } finally {
+            loading.clear();
+            for (Cache<String, Long> hashes : valueHashes) {
+                hashes.invalidateAll();
+            }
+        }
+    }
+
+    /**
+     * Deletes the rows of the group stored for the given hazelcast partitions, e.g. when a
+     * partition migrates back to this member and what it stored for it before may have been
+     * overwritten on other members since. Needs mapstore.h22.partition.aware=true, returns the
+     * number of rows deleted
+     */
+    public int remove(String groupName, Collection<Integer> partitions) {
+        return remove(groupName, partitions, Long.MAX_VALUE);
+    }
+
+    /**
+     * Deletes the rows of the group stored for the given partitions that were last written or
+     * read before the given time, rows written since are kept. A db that cannot take the delete
+     * now gets it later, and reads the group as misses until then. Returns the number of rows
+     * deleted now
+     */
+    public int remove(String groupName, Collection<Integer> partitions, long before) {
+        if (!partitionAware || partitions.isEmpty()) {
+            return 0;
+        }
+        queuePartitionPurge(groupName, partitions, before);
+        return purgePartitions();
+    }
+
+    /**
+     * As {@link #remove(String, Collection, long)}, on the maintenance thread rather than the
+     * caller's, e.g. hazelcast's event thread
+     */
+    public void removeLater(String groupName, Collection<Integer> partitions, long before) {
+        if (!partitionAware || partitions.isEmpty()) {
+            return;
+        }
+        queuePartitionPurge(groupName, partitions, before);
+        ScheduledExecutorService executor = maintenance;
+        if (executor != null) {
+            try {
+                executor.execute(this::purgePartitions);
+            } catch (RejectedExecutionException e) {
+                // shutting down, the group reads as misses until the dbs go
+            }
+        }
+    }
+
+    private void queuePartitionPurge(String groupName, Collection<Integer> partitions, long before) {
+        for (int db = 0; db < numberOfDbs; db++) {
+            partitionPurges.get(db).merge(groupName, new PartitionPurge(partitions, before),
+                            PartitionPurge::merge);
+        }
+    }
+
+    /**
+     * Rows of a group to delete from a db: those of the partitions last used before the time
+     */
+    static class PartitionPurge {
+
+        final Set<Integer> partitions;
+        final long before;
+
+        PartitionPurge(Collection<Integer> partitions, long before) {
+            this.partitions = Collections.unmodifiableSet(new TreeSet<>(partitions));
+            this.before = before;
+        }
+
+        PartitionPurge merge(PartitionPurge other) {
+            // the later time may take rows written since the earlier one, a miss rather than a
+            // stale hit
+            Set<Integer> union = new TreeSet<>(partitions);
+            union.addAll(other.partitions);
+            return new PartitionPurge(union, Math.max(before, other.before));
+        }
+    }
+
+    /**
+     * Runs the partition purges queued for every db that is up, returns the rows deleted
+     */
+    int purgePartitions() {
+        int deleted = 0;
+        for (int db = 0; db < numberOfDbs; db++) {
+            Map<String, PartitionPurge> purges = partitionPurges.get(db);
+            if (purges.isEmpty() || compacting.contains(db) || !breakers[db].isClosed()) {
+                continue;
+            }
+            beginBulkDelete(db);
+            try {
+                Optional<Connection> opt = createBulkConnection(true, db);
+                if (!opt.isPresent()) {
+                    continue;
+                }
+                try (Connection c = opt.get()) {
+                    for (Entry<String, PartitionPurge> entry : purges.entrySet()) {
+                        String group = entry.getKey();
+                        PartitionPurge purge = entry.getValue();
+                        StringBuilder in = new StringBuilder(" and cache_partition in (");
+                        for (int partition : purge.partitions) {
+                            in.append(partition).append(',');
+                        }
+                        in.setCharAt(in.length() - 1, ')');
+                        final int dbNum = db;
+                        for (int table = 0; table < numberOfTablesPerDb; table++) {
+                            deleted += deleteRows(c, table, "cache_group = ?" + in
+                                            + " and cache_accessed < ?", stmt -> {
+                                                if (!bindGroup(stmt, 1, c, dbNum, group, false)) {
+                                                    return false;
+                                                }
+                                                stmt.setLong(2, purge.before);
+                                                return true;
+                                            });
+                        }
+                        // one merged in meanwhile stays for the next run
+                        purges.remove(group, purge);
+                    }
+                } finally {
+                    valueHashes.get(db).invalidateAll();
+                }
+            } catch (SQLException e) {
+                logger.warning("unable to purge migrated partitions from db" + db + " : "
+                                + e.getMessage());
+            }
         }
+        loading.clear();
+        return deleted;
+    }
+
+    /**
+     * Whether a db was recovered from a previous run rather than built empty
+     */
+    public boolean isRecovered() {
+        return recovered;
     }
 
 
     public void remove(String group, String key) {
         Fqn fqn = new Fqn(group, key);
+        H22CircuitBreaker breaker = breakers[db(fqn)];
+        long start = System.nanoTime();
         try {
 
             if (key == null || key.length() == 0) {
@@ -212,20 +905,45 @@ public class H22MapStoreStorage {
             }
 
             // Invalidates from Cache a key from a given group
-            doDelete(fqn);
+            loading.remove(fqn.id);
+            hotKeys.remove(group, key);
+            lastUsed.lazySet(db(fqn), System.currentTimeMillis());
+            if (!awaitCompaction(db(fqn)) || !breaker.allowRequest()) {
+                markStale(fqn);
+                return;
+            }
+            try {
+                doDelete(fqn);
+            } catch (SQLException e) {
+                if (!overlapsCompaction(db(fqn), start) || !awaitCompaction(db(fqn))) {
+                    throw e;
+                }
+                doDelete(fqn);
+            }
+            breaker.onSuccess(System.nanoTime() - start);
+            staleIds.get(db(fqn)).remove(fqn.id);
         } catch (Exception e) {
-            handleError(e, fqn);
+            markStale(fqn);
+            if (recordFailure(db(fqn), e, start)) {
+                handleError(e, fqn);
+            }
+        } finally {
+            loading.remove(fqn.id);
         }
     }
 
     public void doTruncateTables() throws SQLException {
 
         for (int db = 0; db < numberOfDbs; db++) {
+            awaitCompaction(db);
             Optional<H22HikariPool> poolOpt = getPool(db);
             if (!poolOpt.isPresent())
                 continue;
+            // reset before truncating so no put made after the truncate is lost from the filter
+            resetFilter(db);
+            beginBulkDelete(db);
             H22HikariPool pool = poolOpt.get();
-            Optional<Connection> connOpt = pool.connection();
+            Optional<Connection> connOpt = pool.unboundedConnection();
             if (!connOpt.isPresent())
                 continue;
             Connection c = connOpt.get();
@@ -236,6 +954,14 @@ public class H22MapStoreStorage {
                     stmt.execute("truncate table " + TABLE_PREFIX + table);
                     stmt.close();
                 }
+                if (dedupMinBytes > 0) {
+                    Statement stmt = c.createStatement();
+                    stmt.execute("truncate table cache_values");
+                    stmt.close();
+                }
+                staleIds.get(db).clear();
+                partitionPurges.get(db).clear();
+                valueHashes.get(db).invalidateAll();
             } finally {
 
                 c.close();
@@ -250,12 +976,10 @@ public class H22MapStoreStorage {
 
         logger.info("Start Full Cache Flush in h22");
         long start = System.nanoTime();
-        int failedThreshold = HazelH2PropertyBundle
-                        .getIntProperty("mapstore.h22.rebuild.on.removeAll.failure.threshhold", 1);
-        failedThreshold = (failedThreshold < 1) ? 1 : failedThreshold;
+        hotKeys.removeAll();
+        int failedThreshold = rebuildOnRemoveAllFailures;
         // we either truncate the tables on a full flush or rebuild the tables
-        if (HazelH2PropertyBundle.getBooleanProperty("mapstore.h22.rebuild.on.removeAll", false)
-                        || failedFlushAlls == failedThreshold) {
+        if (rebuildOnRemoveAll || failedFlushAlls >= failedThreshold) {
             dispose(true);
         } else {
             try {
@@ -267,6 +991,7 @@ public class H22MapStoreStorage {
             }
         }
 
+        loading.clear();
         if (failedFlushAlls == failedThreshold)
 
 
@@ -283,7 +1008,7 @@ public class H22MapStoreStorage {
         Set<String> groups = new HashSet<String>();
         try {
             for (int db = 0; db < numberOfDbs; db++) {
-                Optional<Connection> opt = createConnection(true, db);
+                Optional<Connection> opt = createBulkReadConnection(db);
                 if (!opt.isPresent()) {
                     continue;
                 }
@@ -294,7 +1019,8 @@ public class H22MapStoreStorage {
                                     "select DISTINCT(cache_group) from " + TABLE_PREFIX + table);
                     if (rs != null) {
                         while (rs.next()) {
-                            String groupname = rs.getString(1);
+                            String groupname = compactSchema ? groupName(c, db, rs.getInt(1))
+                                            : rs.getString(1);
                             if (groupname!=null && groupname.trim().length()>0) {
                                 groups.add(groupname);
                             }
@@ -316,6 +1042,24 @@ public class H22MapStoreStorage {
 
     public void shutdown() {
         isInitialized = false;
+        H22Config.removeListener(reconfigure);
+        stop(maintenance);
+        stop(compactor);
+        flushAccessTimes();
+        if (hotKeysSnapshotMillis > 0) {
+            hotKeys.snapshot();
+        }
+        if (trace != null) {
+            trace.close();
+        }
+        if (skippedPuts.get() > 0) {
+            logger.info("H22 skipped " + skippedPuts.get() + " puts of unchanged values, "
+                            + skippedBytes.get() + " bytes not written");
+        }
+        if (dedupedPuts.get() > 0) {
+            logger.info("H22 deduplicated " + dedupedPuts.get() + " puts of values already stored, "
+                            + dedupedBytes.get() + " bytes not written");
+        }
         // don't trash on shutdown
         dispose(false);
     }
@@ -330,22 +1074,29 @@ public class H22MapStoreStorage {
         try {
             H22HikariPool pool = pools[db];
             pools[db] = null;
+            filters.set(db, null);
+            beginBulkDelete(db);
+            if (trashMe) {
+                // nothing of the old db is left to be stale or to fail
+                staleIds.get(db).clear();
+                staleOverflow[db] = false;
+                partitionPurges.get(db).clear();
+                breakers[db].reset();
+            }
             if (pool != null) {
                 pool.close();
                 if (trashMe) {
                     final File trash = Files.createTempDir();
                     FileUtils.moveDirectory(new File(dbRoot + File.separator + db), trash);
-                    Thread t = new Thread() {
-                        public void run() {
-                            logger.info("deleting: " + trash);
-                            try {
-                                FileUtils.deleteDirectory(trash);
-                            } catch (IOException e) {
-                                logger.severe(e.getMessage());
-                                e.printStackTrace();
-                            }
+                    Thread t = daemonThreads("h22-trash-%d").newThread(() -> {
+                        logger.info("deleting: " + trash);
+                        try {
+                            FileUtils.deleteDirectory(trash);
+                        } catch (IOException e) {
+                            logger.severe(e.getMessage());
+                            e.printStackTrace();
                         }
-                    };
+                    });
                     t.start();
                 }
 
@@ -356,15 +1107,13 @@ public class H22MapStoreStorage {
     }
 
 
-    private Optional<H22HikariPool> getPool(final int dbNum) throws SQLException {
-        return getPool(dbNum, false);
-    }
-
     private final Semaphore building = new Semaphore(1, true);
 
-    private Optional<H22HikariPool> getPool(final int dbNum, final boolean startup)
-                    throws SQLException {
+    private Optional<H22HikariPool> getPool(final int dbNum) throws SQLException {
 
+        if (compacting.contains(dbNum)) {
+            return Optional.empty();
+        }
         H22HikariPool source = pools[dbNum];
         if (source == null) {
             if (building.tryAcquire()) {
@@ -373,11 +1122,7 @@ public class H22MapStoreStorage {
                     public void run() {
                         try {
                             logger.info("Initing H22 cache db:" + dbNum);
-                            if (startup) {
-                                pools[dbNum] = recoverLatestPool(dbNum);
-                            } else {
-                                pools[dbNum] = createPool(dbNum);
-                            }
+                            pools[dbNum] = createPool(dbNum);
                         } catch (SQLException e) {
                             logger.severe(e.getMessage());
                         } finally {
@@ -401,35 +1146,28 @@ public class H22MapStoreStorage {
         H22HikariPool source = new H22HikariPool(dbRoot, dbNum);
         // create table
         createTables(source);
+        // a new db is empty, its filter is complete from the start
+        resetFilter(dbNum);
         return source;
     }
 
     private H22HikariPool recoverLatestPool(int dbNum) throws SQLException {
         H22HikariPool source = null;
-        File dbs = new File(dbRoot + File.separator + dbNum);
-        if (dbs.exists() && dbs.isDirectory()) {
-            File[] files = dbs.listFiles((FileFilter) DirectoryFileFilter.DIRECTORY);
-            Arrays.sort(files, LastModifiedFileComparator.LASTMODIFIED_REVERSE);
-            if (files.length > 0) {
-                File myDb = files[0];
-                if (files[0].isDirectory()) {
-                    files = myDb.listFiles();
-                    if (files.length > 0) {
-                        Arrays.sort(files, LastModifiedFileComparator.LASTMODIFIED_REVERSE);
-                        if (files[0].lastModified() + recoverOnRestart > System
-                                        .currentTimeMillis()) {
-                            logger.info("Recovering H22 Cache, db:" + dbNum + ":" + myDb.getName());
-                            try {
-                                source = new H22HikariPool(dbRoot, dbNum, myDb.getName());
-                                createTables(source);
-                                pools[dbNum] = source;
-                            } catch (PoolInitializationException e) {
-                                logger.warning("Failed to recover H2 Cache:" + e.getMessage());
-                            }
-
-                        }
-                    }
+        File myDb = latestGeneration(dbNum);
+        if (myDb != null && lastWritten(myDb) + recoverOnRestart > System.currentTimeMillis()) {
+            logger.info("Recovering H22 Cache, db:" + dbNum + ":" + myDb.getName());
+            try {
+                source = new H22HikariPool(dbRoot, dbNum, myDb.getName());
+                if (!schemaMatches(source)) {
+                    logger.info("Schema changed, not recovering H22 Cache, db:" + dbNum + ":"
+                                    + myDb.getName());
+                    source.close();
+                    source = null;
+                } else {
+                    recovered = true;
                 }
+            } catch (PoolInitializationException e) {
+                logger.warning("Failed to recover H2 Cache:" + e.getMessage());
             }
         }
         if (source == null) {
@@ -438,98 +1176,613 @@ public class H22MapStoreStorage {
         return source;
     }
 
-    Optional<Connection> createConnection(boolean autoCommit, int dbnumber) throws SQLException {
-        Optional<H22HikariPool> poolOpt = getPool(dbnumber);
-        if (poolOpt.isPresent()) {
-            Optional<Connection> opt = poolOpt.get().connection();
-            if (opt.isPresent()) {
-                if (autoCommit == false) {
-                    opt.get().setAutoCommit(autoCommit);
+    /**
+     * db folders are named by their creation timestamp (yyyy-MM-dd_HH-mm-ss-SSS, older ones
+     * without the millis), so the newest generation is the greatest name - no need to stat and
+     * sort the listing
+     */
+    private File latestGeneration(int dbNum) {
+        File[] generations = new File(dbRoot + File.separator + dbNum)
+                        .listFiles((FileFilter) DirectoryFileFilter.DIRECTORY);
+        File latest = null;
+        if (generations != null) {
+            for (File generation : generations) {
+                if (latest == null || generation.getName().compareTo(latest.getName()) > 0) {
+                    latest = generation;
                 }
             }
-            return opt;
         }
-        return Optional.empty();
+        return latest;
     }
 
-    private boolean doUpsert(final Fqn fqn, final Serializable obj) throws Exception {
-        long start = System.nanoTime();
-        long bytes = 0;
-        boolean worked = false;
-        if (fqn == null || exclude(fqn)) {
-            return worked;
-        }
-
-        Optional<Connection> opt = createConnection(true, db(fqn));
-        if (!opt.isPresent()) {
-            return worked;
+    private long lastWritten(File dir) {
+        long lastWritten = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                lastWritten = Math.max(lastWritten, file.lastModified());
+            }
         }
-        Connection c = opt.get();
-
-
-
-        String upsertSQL = "MERGE INTO `" + TABLE_PREFIX + table(fqn)
-                        + "` key(cache_id) VALUES (?, ?, ?, ?)";
+        return lastWritten;
+    }
 
-        PreparedStatement upsertStmt = null;
-        try {
-            upsertStmt = c.prepareStatement(upsertSQL);
-            upsertStmt.setString(1, fqn.id);
-            upsertStmt.setString(2, fqn.group);
-            upsertStmt.setString(3, fqn.key);
-            ObjectOutputStream output = null;
-            OutputStream bout;
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            bout = new BufferedOutputStream(os, 8192);
-
-            output = new ObjectOutputStream(bout);
-            output.writeObject(obj);
-            output.flush();
-            byte[] data = os.toByteArray();
-            bytes = data.length;
-            upsertStmt.setBytes(4, data);
+    /**
+     * Deletes db generations older than the ones in use, in the background
+     */
+    private void cleanStaleGenerations() {
+        Thread t = daemonThreads("h22-cleaner-%d").newThread(() -> {
+            for (int db = 0; db < numberOfDbs; db++) {
+                H22HikariPool pool = pools[db];
+                File[] generations = new File(dbRoot + File.separator + db)
+                                .listFiles((FileFilter) DirectoryFileFilter.DIRECTORY);
+                if (pool == null || generations == null) {
+                    continue;
+                }
+                for (File generation : generations) {
+                    if (generation.getName().compareTo(pool.database) < 0) {
+                        logger.info("deleting stale H22 cache: " + generation);
+                        try {
+                            FileUtils.deleteDirectory(generation);
+                        } catch (IOException e) {
+                            logger.warning("unable to delete " + generation + " : "
+                                            + e.getMessage());
+                        }
+                    }
+                }
+            }
+        });
+        t.start();
+    }
 
-            worked = upsertStmt.execute();
+    String schemaVersion() {
+        return SCHEMA_VERSION + ":" + numberOfDbs + ":" + numberOfTablesPerDb
+                        + (partitionAware ? ":partitioned" : "") + (compactSchema ? ":compact" : "")
+                        + ((dedupMinBytes > 0) ? ":dedup" : "");
+    }
 
-        } finally {
-            if (upsertStmt != null)
-                upsertStmt.close();
-            c.close();
+    /**
+     * Binds the group to the statement, as its name or, with the compact schema, as its id in
+     * the db's cache_groups dictionary. Returns false if the group has no id and create is false,
+     * nothing in the db can match it then
+     */
+    private boolean bindGroup(PreparedStatement stmt, int index, Connection c, int db,
+                    String group, boolean create) throws SQLException {
+        if (!compactSchema) {
+            stmt.setString(index, group);
+            return true;
         }
+        int id = groupId(c, db, group, create);
+        if (id < 0) {
+            return false;
+        }
+        stmt.setInt(index, id);
+        return true;
+    }
 
+    private int groupId(Connection c, int db, String group, boolean create) throws SQLException {
+        H22HikariPool pool = pools[db];
+        Integer id = (pool == null) ? null : pool.groupIds.get(group);
+        if (id != null) {
+            return id;
+        }
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try (PreparedStatement stmt = c.prepareStatement(
+                            "select group_id from cache_groups where cache_group = ?")) {
+                stmt.setString(1, group);
+                ResultSet rs = stmt.executeQuery();
+                if (rs.next()) {
+                    id = rs.getInt(1);
+                    if (pool != null) {
+                        pool.groupIds.put(group, id);
+                        pool.groupNames.put(id, group);
+                    }
+                    return id;
+                }
+            }
+            if (!create) {
+                return -1;
+            }
+            // add it in its own transaction, so a batch on c that rolls back cannot take the
+            // id others have already seen with it
+            Optional<Connection> own = c.getAutoCommit() ? Optional.of(c) : createConnection(true, db);
+            try (PreparedStatement stmt = own.orElse(c).prepareStatement(
+                            "insert into cache_groups (cache_group) values (?)")) {
+                stmt.setString(1, group);
+                stmt.execute();
+            } catch (SQLException e) {
+                // another thread added it first, read its id
+            } finally {
+                if (own.isPresent() && own.get() != c) {
+                    own.get().close();
+                }
+            }
+        }
+        throw new SQLException("Unable to add group " + group);
+    }
 
-        return worked;
+    private String groupName(Connection c, int db, int id) throws SQLException {
+        H22HikariPool pool = pools[db];
+        String group = (pool == null) ? null : pool.groupNames.get(id);
+        if (group != null) {
+            return group;
+        }
+        try (PreparedStatement stmt = c.prepareStatement(
+                        "select cache_group from cache_groups where group_id = ?")) {
+            stmt.setInt(1, id);
+            ResultSet rs = stmt.executeQuery();
+            return rs.next() ? rs.getString(1) : null;
+        }
     }
 
-    private Object doSelect(Fqn fqn) throws Exception {
-        if (fqn == null || exclude(fqn)) {
-            return null;
+    private String readKey(ResultSet rs, int column) throws SQLException {
+        if (compactSchema) {
+            byte[] key = rs.getBytes(column);
+            return (key == null) ? null : new String(key, StandardCharsets.UTF_8);
         }
+        return rs.getString(column);
+    }
 
-        ObjectInputStream input = null;
-        InputStream bin = null;
-        InputStream is = null;
-        Optional<Connection> opt = createConnection(true, db(fqn));
+    public boolean isPartitionAware() {
+        return partitionAware;
+    }
+
+    private boolean schemaMatches(H22HikariPool source) throws SQLException {
+        Optional<Connection> opt = source.connection();
         if (!opt.isPresent()) {
-            return null;
+            return false;
+        }
+        try (Connection c = opt.get(); Statement s = c.createStatement()) {
+            ResultSet rs = s.executeQuery("select schema_version from cache_schema");
+            return rs.next() && schemaVersion().equals(rs.getString(1));
+        } catch (SQLException e) {
+            // no schema table, this db predates versioning
+            return false;
+        }
+    }
+
+    Optional<Connection> createConnection(boolean autoCommit, int dbnumber) throws SQLException {
+        return createConnection(autoCommit, dbnumber, false);
+    }
+
+    /**
+     * A connection for scans and bulk writes, not cut short by the query timeout
+     */
+    Optional<Connection> createBulkConnection(boolean autoCommit, int dbnumber) throws SQLException {
+        return createConnection(autoCommit, dbnumber, true);
+    }
+
+    private Optional<Connection> createConnection(boolean autoCommit, int dbnumber, boolean bulk)
+                    throws SQLException {
+        if (compacting.contains(dbnumber)) {
+            // a write that went nowhere would leave the row out of date once the db is back
+            throw new SQLException("H22 cache db:" + dbnumber + " is compacting");
+        }
+        Optional<H22HikariPool> poolOpt = getPool(dbnumber);
+        if (poolOpt.isPresent()) {
+            Optional<Connection> opt = bulk ? poolOpt.get().unboundedConnection() : poolOpt.get().connection();
+            if (opt.isPresent()) {
+                if (autoCommit == false) {
+                    opt.get().setAutoCommit(autoCommit);
+                }
+            }
+            return opt;
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * A connection for reads, from the db's read pool if it has one
+     */
+    Optional<Connection> createReadConnection(int dbnumber) throws SQLException {
+        Optional<H22HikariPool> poolOpt = getPool(dbnumber);
+        if (poolOpt.isPresent()) {
+            return poolOpt.get().readConnection();
+        }
+        return Optional.empty();
+    }
+
+    Optional<Connection> createBulkReadConnection(int dbnumber) throws SQLException {
+        Optional<H22HikariPool> poolOpt = getPool(dbnumber);
+        if (poolOpt.isPresent()) {
+            return poolOpt.get().unboundedReadConnection();
+        }
+        return Optional.empty();
+    }
+
+    private String upsertSQL(int table) {
+        return upsertSQL(table, false);
+    }
+
+    /**
+     * @param digest whether the statement also sets cache_digest, as parameter 9
+     */
+    private String upsertSQL(int table, boolean digest) {
+        return "MERGE INTO `" + TABLE_PREFIX + table
+                        + "` (cache_id, cache_group, cache_key, CACHE_DATA, cache_expires, cache_accessed, cache_partition, cache_hash"
+                        + (digest ? ", cache_digest) key(cache_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)"
+                                        : ") key(cache_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+    }
+
+    /**
+     * Binds everything of an {@link #upsertSQL(int)} but the value, which is parameter 4
+     *
+     * @param hash of the serialized value, 0 if unknown
+     */
+    private void bindRow(PreparedStatement stmt, Connection c, Fqn fqn, long expires,
+                    int partition, long hash) throws SQLException {
+        stmt.setString(1, fqn.id);
+        bindGroup(stmt, 2, c, db(fqn), fqn.group, true);
+        if (compactSchema) {
+            stmt.setBytes(3, fqn.key.getBytes(StandardCharsets.UTF_8));
+        } else {
+            stmt.setString(3, fqn.key);
+        }
+        stmt.setLong(5, expires);
+        stmt.setLong(6, System.currentTimeMillis());
+        stmt.setInt(7, partition);
+        stmt.setLong(8, hash);
+    }
+
+    private boolean doUpsert(final Fqn fqn, final Serializable obj, final int partition)
+                    throws Exception {
+        long start = System.nanoTime();
+        long bytes = 0;
+        boolean worked = false;
+        if (fqn == null || exclude(fqn)) {
+            return worked;
+        }
+
+        Optional<Connection> opt = createConnection(true, db(fqn));
+        if (!opt.isPresent()) {
+            return worked;
+        }
+        Connection c = opt.get();
+
+        long ttl = ttlMillis(fqn.group);
+        // a put with a ttl moves the expiry, so it is written even if the value is unchanged
+        boolean skippable = skipUnchanged && ttl <= 0;
+        Lock lock = (skippable || dedupMinBytes > 0) ? upsertLocks.get(fqn.id) : null;
+        PreparedStatement upsertStmt = null;
+        H22ValueStream value = new H22ValueStream(valueBuffers, c);
+        if (lock != null) {
+            lock.lock();
+        }
+        long bulkDeletesBefore = bulkDeletes.get(db(fqn));
+        try {
+            // deduplicated values are stored by a digest that must not collide
+            HashingOutputStream hashing = new HashingOutputStream(
+                            (dedupMinBytes > 0) ? Hashing.sha256() : Hashing.murmur3_128(), value);
+            ObjectOutputStream output = new ObjectOutputStream(hashing);
+            output.writeObject(obj);
+            output.close();
+            bytes = value.size();
+            lastValueBytes(bytes);
+            HashCode digest = hashing.hash();
+            // 0 is the hash of rows nobody hashed, e.g. imported ones
+            long hash = digest.asLong();
+            hash = (hash == 0) ? 1 : hash;
+            if (skippable && hash == storedHash(c, fqn)
+                            && (!partitionAware || touchRow(c, fqn, partition))) {
+                skippedPuts.incrementAndGet();
+                skippedBytes.addAndGet(bytes);
+                // the put would have made the row recently used
+                recordAccess(fqn);
+                return worked;
+            }
+
+            valueHashes.get(db(fqn)).invalidate(fqn.id);
+            long expires = (ttl > 0) ? System.currentTimeMillis() + ttl : 0;
+            if (dedupMinBytes > 0) {
+                worked = upsertCounted(c, fqn, value, expires, partition, hash,
+                                (bytes >= dedupMinBytes) ? digest.toString() : null);
+            } else {
+                upsertStmt = c.prepareStatement(upsertSQL(table(fqn)));
+                bindRow(upsertStmt, c, fqn, expires, partition, hash);
+                bindValue(upsertStmt, 4, value);
+                worked = upsertStmt.execute();
+            }
+            filterPut(fqn);
+            Runnable hook = afterUpsert;
+            if (hook != null) {
+                hook.run();
+            }
+            if (skippable) {
+                valueHashes.get(db(fqn)).put(fqn.id, hash);
+                // checked after the put, a bulk delete starting in between forgets it itself
+                if (bulkDeletes.get(db(fqn)) != bulkDeletesBefore) {
+                    valueHashes.get(db(fqn)).invalidate(fqn.id);
+                }
+            }
+
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+            value.release();
+            if (upsertStmt != null)
+                upsertStmt.close();
+            c.close();
+        }
+
+
+        return worked;
+    }
+
+    private void bindValue(PreparedStatement stmt, int index, H22ValueStream value)
+                    throws SQLException {
+        if (value.isSpilled()) {
+            stmt.setBlob(index, value.blob());
+        } else {
+            stmt.setBinaryStream(index, value.inputStream(), value.size());
+        }
+    }
+
+    /**
+     * Writes the row with deduplication: a value of digest is stored once in cache_values and
+     * the row counted as one of its references, values without a digest are stored in the row.
+     * The reference the row held before is dropped in the same transaction, with the row locked
+     * so removes and other writers of it wait. Like every writer of cache_values, it locks the
+     * digests it touches in their sort order, so two puts swapping values can not deadlock
+     */
+    private boolean upsertCounted(Connection c, Fqn fqn, H22ValueStream value, long expires,
+                    int partition, long hash, String digest) throws SQLException {
+        c.setAutoCommit(false);
+        try {
+            String held = null;
+            try (PreparedStatement stmt = c.prepareStatement("select cache_digest from `"
+                            + TABLE_PREFIX + table(fqn) + "` WHERE cache_id = ? FOR UPDATE")) {
+                stmt.setString(1, fqn.id);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    held = rs.next() ? rs.getString(1) : null;
+                }
+            }
+            boolean release = held != null && !held.equals(digest);
+            boolean releaseFirst = release && (digest == null || held.compareTo(digest) < 0);
+            if (releaseFirst) {
+                dropReferences(c, Collections.singletonMap(held, 1));
+            }
+            if (digest != null && !digest.equals(held) && addReference(c, digest, value)) {
+                dedupedPuts.incrementAndGet();
+                dedupedBytes.addAndGet(value.size());
+            }
+            boolean worked;
+            try (PreparedStatement stmt = c.prepareStatement(upsertSQL(table(fqn), true))) {
+                bindRow(stmt, c, fqn, expires, partition, hash);
+                if (digest == null) {
+                    bindValue(stmt, 4, value);
+                } else {
+                    stmt.setNull(4, Types.BLOB);
+                }
+                stmt.setString(9, digest);
+                worked = stmt.execute();
+            }
+            if (release && !releaseFirst) {
+                dropReferences(c, Collections.singletonMap(held, 1));
+            }
+            c.commit();
+            return worked;
+        } catch (SQLException | RuntimeException e) {
+            c.rollback();
+            throw e;
+        } finally {
+            c.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Counts a reference to the value of digest, storing it if it is not yet. Returns true if it
+     * was stored already
+     */
+    private boolean addReference(Connection c, String digest, H22ValueStream value)
+                    throws SQLException {
+        for (int attempt = 0;; attempt++) {
+            try (PreparedStatement stmt = c.prepareStatement(
+                            "UPDATE cache_values SET refs = refs + 1 WHERE digest = ?")) {
+                stmt.setString(1, digest);
+                if (stmt.executeUpdate() > 0) {
+                    return true;
+                }
+            }
+            try (PreparedStatement stmt = c.prepareStatement(
+                            "INSERT INTO cache_values (digest, refs, CACHE_DATA) VALUES (?, 1, ?)")) {
+                stmt.setString(1, digest);
+                bindValue(stmt, 2, value);
+                stmt.execute();
+                return false;
+            } catch (SQLException e) {
+                // another put stored it meanwhile, count a reference to theirs
+                if (attempt >= 2) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the given number of references to each digest, and the values nobody refers to
+     * any more. The digests are locked in their sort order
+     */
+    private void dropReferences(Connection c, Map<String, Integer> references)
+                    throws SQLException {
+        if (references.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement drop = c.prepareStatement(
+                        "UPDATE cache_values SET refs = refs - ? WHERE digest = ?");
+                        PreparedStatement delete = c.prepareStatement(
+                                        "DELETE FROM cache_values WHERE digest = ? AND refs <= 0")) {
+            for (Entry<String, Integer> reference : new TreeMap<>(references).entrySet()) {
+                drop.setInt(1, reference.getValue());
+                drop.setString(2, reference.getKey());
+                drop.addBatch();
+                delete.setString(1, reference.getKey());
+                delete.addBatch();
+            }
+            drop.executeBatch();
+            delete.executeBatch();
+        }
+    }
+
+    interface Binder {
+        /**
+         * Binds the parameters, false if no row can match
+         */
+        boolean bind(PreparedStatement stmt) throws SQLException;
+    }
+
+    /**
+     * Deletes the rows of the table matching where and returns how many. With deduplication the
+     * rows are locked and read first, so the references they hold are dropped with them. If c
+     * is autocommit it is all committed here, otherwise it is left to the caller
+     */
+    private int deleteRows(Connection c, int table, String where, Binder binder)
+                    throws SQLException {
+        if (dedupMinBytes <= 0) {
+            try (PreparedStatement stmt = c.prepareStatement(
+                            "DELETE FROM " + TABLE_PREFIX + table + " WHERE " + where)) {
+                return binder.bind(stmt) ? stmt.executeUpdate() : 0;
+            }
+        }
+        boolean autoCommit = c.getAutoCommit();
+        c.setAutoCommit(false);
+        try {
+            List<Long> ids = new ArrayList<>();
+            Map<String, Integer> references = new HashMap<>();
+            try (PreparedStatement stmt = c.prepareStatement("SELECT cache_id, cache_digest FROM "
+                            + TABLE_PREFIX + table + " WHERE " + where + " FOR UPDATE")) {
+                if (binder.bind(stmt)) {
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            ids.add(rs.getLong(1));
+                            if (rs.getString(2) != null) {
+                                references.merge(rs.getString(2), 1, Integer::sum);
+                            }
+                        }
+                    }
+                }
+            }
+            if (!ids.isEmpty()) {
+                try (PreparedStatement stmt = c.prepareStatement(
+                                "DELETE FROM " + TABLE_PREFIX + table + " WHERE cache_id = ?")) {
+                    for (long id : ids) {
+                        stmt.setLong(1, id);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+                dropReferences(c, references);
+            }
+            if (autoCommit) {
+                c.commit();
+            }
+            return ids.size();
+        } catch (SQLException e) {
+            if (autoCommit) {
+                c.rollback();
+            }
+            throw e;
+        } finally {
+            if (autoCommit) {
+                c.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * The rows of the table, with deduplication joined to the values they point to
+     */
+    private String rowsOf(int table) {
+        return "`" + TABLE_PREFIX + table + "` t"
+                        + ((dedupMinBytes > 0) ? " LEFT JOIN cache_values v ON v.digest = t.cache_digest" : "");
+    }
+
+    /**
+     * The value of a row of {@link #rowsOf(int)}
+     */
+    private String valueOf() {
+        return (dedupMinBytes > 0) ? "COALESCE(t.CACHE_DATA, v.CACHE_DATA)" : "t.CACHE_DATA";
+    }
+
+    /**
+     * Called before rows of the db are deleted in bulk: puts in flight no longer remember their
+     * hash and what is remembered is forgotten. The caller forgets again once the rows are gone
+     */
+    private void beginBulkDelete(int db) {
+        bulkDeletes.incrementAndGet(db);
+        valueHashes.get(db).invalidateAll();
+    }
+
+    /**
+     * Marks the row of a skipped put as written now and for the put's partition, a partition
+     * purge keeps the rows written since the partition migrated. Returns false if the row is
+     * gone, e.g. with a bulk delete since its hash was read, and must be written after all
+     */
+    private boolean touchRow(Connection c, Fqn fqn, int partition) throws SQLException {
+        try (PreparedStatement stmt = c.prepareStatement("UPDATE " + TABLE_PREFIX + table(fqn)
+                        + " SET cache_accessed = ?, cache_partition = ? WHERE cache_id = ?")) {
+            stmt.setLong(1, System.currentTimeMillis());
+            stmt.setInt(2, partition);
+            stmt.setString(3, fqn.id);
+            return stmt.executeUpdate() > 0;
+        }
+    }
+
+    /**
+     * The hash of the value stored for the id from memory or else from its row, 0 if unknown or
+     * if the row is missing or expires
+     */
+    private long storedHash(Connection c, Fqn fqn) throws SQLException {
+        Long hash = valueHashes.get(db(fqn)).getIfPresent(fqn.id);
+        if (hash != null) {
+            return hash;
+        }
+        if (!mightContain(fqn)) {
+            return 0;
+        }
+        try (PreparedStatement stmt = c.prepareStatement("select cache_hash from `" + TABLE_PREFIX
+                        + table(fqn) + "` WHERE cache_id = ? AND cache_expires = 0")) {
+            stmt.setString(1, fqn.id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    private Object doSelect(Fqn fqn) throws Exception {
+        if (fqn == null || exclude(fqn)) {
+            return null;
+        }
+        if (!mightContain(fqn)) {
+            filteredMisses.incrementAndGet();
+            return null;
+        }
+
+        ObjectInputStream input = null;
+        Optional<Connection> opt = createReadConnection(db(fqn));
+        if (!opt.isPresent()) {
+            return null;
         }
         Connection c = opt.get();
 
         PreparedStatement stmt = null;
         try {
 
-            stmt = c.prepareStatement("select CACHE_DATA from `" + TABLE_PREFIX + table(fqn)
-                            + "` WHERE cache_id = ?");
+            stmt = c.prepareStatement("select " + valueOf() + " from " + rowsOf(table(fqn))
+                            + " WHERE cache_id = ? AND (cache_expires = 0 OR cache_expires > ?)");
             stmt.setString(1, fqn.id);
+            stmt.setLong(2, System.currentTimeMillis());
             ResultSet rs = stmt.executeQuery();
-            if (!rs.next()) {
+            // a row pointing to a value truncated under it reads as a miss
+            if (!rs.next() || rs.getBlob(1) == null) {
                 return null;
             }
-            is = new ByteArrayInputStream(rs.getBytes(1));
-            bin = new BufferedInputStream(is, 8192);
-
-            input = new ObjectInputStream(bin);
-            return input.readObject();
+            // stream the value out of h2, large values are read from the lob storage in blocks
+            // rather than as one byte[]
+            CountingInputStream counted = new CountingInputStream(rs.getBinaryStream(1));
+            input = new ObjectInputStream(counted);
+            Object value = input.readObject();
+            lastValueBytes(counted.getByteCount());
+            return value;
 
         } finally {
 
@@ -543,21 +1796,6 @@ public class H22MapStoreStorage {
                     logger.warning("should not be here:" + e.getMessage());
                 }
             }
-            if (bin != null) {
-                try {
-                    bin.close();
-                } catch (IOException e) {
-                    logger.warning("should not be here:" + e.getMessage());
-                }
-            }
-
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    logger.warning("should not be here:" + e.getMessage());
-                }
-            }
         }
     }
 
@@ -571,60 +1809,104 @@ public class H22MapStoreStorage {
             return;
         }
         Connection c = opt.get();
-        PreparedStatement pstmt = null;
+        Lock lock = upsertLocks.get(fqn.id);
+        lock.lock();
         try {
-            String sql = "DELETE from " + TABLE_PREFIX + table(fqn) + " WHERE cache_id = ?";
-            pstmt = c.prepareStatement(sql);
-            pstmt.setString(1, fqn.id);
-            pstmt.execute();
-            pstmt.close();
-            c.close();
+            valueHashes.get(db(fqn)).invalidate(fqn.id);
+            deleteRows(c, table(fqn), "cache_id = ?", stmt -> {
+                stmt.setString(1, fqn.id);
+                return true;
+            });
             DONT_CACHE_ME.remove(fqn.id);
         } finally {
-            pstmt.close();
+            lock.unlock();
             c.close();
         }
     }
 
     private void createTables(H22HikariPool source) throws SQLException {
-        Connection c = null;
-        int i = 0;
-
-        try {
-            Thread.sleep(100);
-        } catch (InterruptedException e) {
-            throw new SQLException("Unable to get connection", e);
-        }
-        i++;
-        if (i == 100) {
+        Optional<Connection> opt = source.connection();
+        if (!opt.isPresent()) {
             throw new SQLException("Unable to get connection");
         }
-
-        Optional<Connection> opt = source.connection();
-        c = opt.get();
+        Connection c = opt.get();
 
         for (int table = 0; table < numberOfTablesPerDb; table++) {
 
             Statement s = c.createStatement();
             s.execute("CREATE CACHED TABLE IF NOT EXISTS `" + TABLE_PREFIX + table
-                            + "` (cache_id bigint PRIMARY KEY, cache_group VARCHAR(255), cache_key VARCHAR(1000),  CACHE_DATA BLOB)");
+                            + "` (cache_id bigint PRIMARY KEY, "
+                            + (compactSchema ? "cache_group INT, cache_key VARBINARY(4000), "
+                                            : "cache_group VARCHAR(255), cache_key VARCHAR(1000), ")
+                            + "CACHE_DATA BLOB, cache_expires BIGINT DEFAULT 0 NOT NULL, cache_accessed BIGINT DEFAULT 0 NOT NULL, cache_partition INT DEFAULT -1 NOT NULL, cache_hash BIGINT DEFAULT 0 NOT NULL, cache_digest VARCHAR(64))");
             s.close();
             s = c.createStatement();
             s.execute("CREATE INDEX IF NOT EXISTS `idx_" + TABLE_PREFIX + table + "_index_` on "
                             + TABLE_PREFIX + table + "(cache_group)");
+            s.execute("CREATE INDEX IF NOT EXISTS `idx_" + TABLE_PREFIX + table + "_expires_` on "
+                            + TABLE_PREFIX + table + "(cache_expires)");
+            s.execute("CREATE INDEX IF NOT EXISTS `idx_" + TABLE_PREFIX + table + "_accessed_` on "
+                            + TABLE_PREFIX + table + "(cache_accessed)");
+            if (partitionAware) {
+                s.execute("CREATE INDEX IF NOT EXISTS `idx_" + TABLE_PREFIX + table
+                                + "_partition_` on " + TABLE_PREFIX + table
+                                + "(cache_group, cache_partition)");
+            }
+            s.close();
+        }
+        Statement s = c.createStatement();
+        if (dedupMinBytes > 0) {
+            s.execute("CREATE CACHED TABLE IF NOT EXISTS cache_values (digest VARCHAR(64) PRIMARY KEY, refs INT NOT NULL, CACHE_DATA BLOB)");
         }
+        if (compactSchema) {
+            s.execute("CREATE TABLE IF NOT EXISTS cache_groups (group_id INT AUTO_INCREMENT PRIMARY KEY, cache_group VARCHAR(255) UNIQUE)");
+        }
+        s.execute("CREATE TABLE IF NOT EXISTS cache_schema (schema_version VARCHAR(255))");
+        s.execute("DELETE FROM cache_schema");
+        s.close();
+        PreparedStatement stmt = c.prepareStatement("INSERT INTO cache_schema VALUES (?)");
+        stmt.setString(1, schemaVersion());
+        stmt.execute();
+        stmt.close();
+        // make sure the new schema is on disk before we start taking writes
+        s = c.createStatement();
+        s.execute("CHECKPOINT");
+        s.close();
         c.close();
     }
 
 
     public Set<String> getKeys(String groupName) {
+        return getKeys(groupName, null);
+    }
+
+    /**
+     * The keys of the group stored for the given hazelcast partitions, or for all of them if
+     * partitions is null. Only rows put with their partition are found by partition
+     */
+    public Set<String> getKeys(String groupName, Collection<Integer> partitions) {
+
+        String partitionFilter = "";
+        if (partitions != null) {
+            if (partitions.isEmpty()) {
+                return new HashSet<String>();
+            }
+            StringBuilder in = new StringBuilder(" and cache_partition in (");
+            for (int partition : partitions) {
+                in.append(partition).append(',');
+            }
+            in.setCharAt(in.length() - 1, ')');
+            partitionFilter = in.toString();
+        }
 
         Set<String> keys = new HashSet<String>();
-        int db = 0;
         Fqn fqn = new Fqn(groupName);
-        try {
-            for (db = 0; db < numberOfDbs; db++) {
-                Optional<Connection> opt = createConnection(true, db);
+        for (int db = 0; db < numberOfDbs; db++) {
+            // a db that fails is left out whole, the others still answer
+            Set<String> dbKeys = new HashSet<String>();
+            try {
+                awaitCompaction(db);
+                Optional<Connection> opt = createBulkReadConnection(db);
                 if (!opt.isPresent()) {
                     continue;
                 }
@@ -632,59 +1914,1081 @@ public class H22MapStoreStorage {
                 try {
                     for (int table = 0; table < numberOfTablesPerDb; table++) {
                         PreparedStatement stmt = c.prepareStatement("select cache_key from "
-                                        + TABLE_PREFIX + table + " where cache_group = ?");
-                        stmt.setString(1, fqn.group);
+                                        + TABLE_PREFIX + table + " where cache_group = ?"
+                                        + partitionFilter
+                                        + " and (cache_expires = 0 or cache_expires > ?)");
+                        if (!bindGroup(stmt, 1, c, db, fqn.group, false)) {
+                            stmt.close();
+                            break;
+                        }
+                        stmt.setLong(2, System.currentTimeMillis());
                         stmt.setFetchSize(1000);
                         ResultSet rs = stmt.executeQuery();
                         while (rs.next()) {
-                            keys.add(rs.getString(1));
+                            dbKeys.add(readKey(rs, 1));
                         }
                         rs.close();
                     }
                 } finally {
                     c.close();
                 }
+                keys.addAll(dbKeys);
+            } catch (Exception ex) {
+                logger.warning("cannot read the keys of " + fqn + " from db" + db + ", leaving them out : "
+                                + ex.getMessage());
             }
-        } catch (Exception ex) {
-            handleError(ex, fqn);
         }
 
         return keys;
     }
 
-    private void handleError(final Exception ex, final Fqn fqn) {
-        // debug all errors
-        logger.fine(ex.getMessage() + " on " + fqn);
-        int db = db(fqn);
-        if (lastLog + limitErrorLogMillis < System.currentTimeMillis()) {
-            lastLog = System.currentTimeMillis();
-            logger.warning("Error #" + errorCounter[db] + " " + ex.getMessage() + " on " + fqn);
-
-        }
-
-        errorCounter[db]++;
-        if (errorCounter[db] > recoverAfterErrors && recoverAfterErrors > 0) {
-            errorCounter[db] = 0;
-            logger.severe("Errors exceeded " + recoverAfterErrors + " rebuilding H22 Cache for db"
-                            + db);
-            dispose(db, true);
+    /**
+     * Exports every live row to folder, one file per db written concurrently while the store
+     * keeps serving. Each db is paged through by cache_id, so rows written during the export may
+     * or may not be in it. With modifiedSince > 0 only rows written, or with a quota read, since
+     * then are exported, removals are not. Returns the number of rows exported
+     */
+    public long export(File folder, long modifiedSince) throws Exception {
+        long start = System.currentTimeMillis();
+        folder.mkdirs();
+        ExecutorService exporters = Executors.newFixedThreadPool(
+                        Math.max(1, Math.min(startupThreads, numberOfDbs)),
+                        daemonThreads("h22-export-%d"));
+        long rows = 0;
+        try {
+            List<Future<Long>> shards = new ArrayList<>();
+            for (int i = 0; i < numberOfDbs; i++) {
+                final int db = i;
+                shards.add(exporters.submit(() -> exportDb(db,
+                                new File(folder, "db" + db + H22ExportFormat.SUFFIX), modifiedSince)));
+            }
+            for (Future<Long> shard : shards) {
+                rows += shard.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to export H22 Cache to " + folder, e.getCause());
+        } finally {
+            exporters.shutdown();
         }
+        logger.info("Exported " + rows + " rows from H22 cache to " + folder + " in "
+                        + (System.currentTimeMillis() - start) + "ms");
+        return rows;
+    }
 
+    public long export(File folder) throws Exception {
+        return export(folder, 0);
     }
 
-    private String _getGroupCount(String groupName) throws SQLException {
-        Fqn fqn = new Fqn(groupName);
-        long ret = 0;
-        for (int db = 0; db < numberOfDbs; db++) {
-            Optional<Connection> opt = createConnection(true, db);
-            if (!opt.isPresent()) {
-                continue;
-            }
-            Connection c = opt.get();
+    private long exportDb(int db, File file, long modifiedSince) throws Exception {
+        // only a finished file gets the real name, so a failed export never looks complete
+        File tmp = new File(file.getPath() + ".tmp");
+        long rows;
+        try (H22ExportFormat.Writer writer =
+                        new H22ExportFormat.Writer(tmp, schemaVersion(), exportBatchSize)) {
             for (int table = 0; table < numberOfTablesPerDb; table++) {
-                PreparedStatement stmt = c.prepareStatement("select count(*) from " + TABLE_PREFIX
+                long lastId = Long.MIN_VALUE;
+                int page;
+                do {
+                    page = 0;
+                    awaitCompaction(db);
+                    Optional<Connection> opt = createBulkReadConnection(db);
+                    if (!opt.isPresent()) {
+                        throw new SQLException("H22 cache db:" + db + " is not available");
+                    }
+                    try (Connection c = opt.get();
+                                    PreparedStatement stmt = c.prepareStatement(
+                                                    "select cache_id, cache_group, cache_key, cache_expires, cache_partition, "
+                                                                    + valueOf() + " from " + rowsOf(table)
+                                                                    + " where cache_id > ? and cache_accessed >= ? and (cache_expires = 0 or cache_expires > ?) order by cache_id limit ?")) {
+                        stmt.setLong(1, lastId);
+                        stmt.setLong(2, modifiedSince);
+                        stmt.setLong(3, System.currentTimeMillis());
+                        stmt.setInt(4, exportBatchSize);
+                        ResultSet rs = stmt.executeQuery();
+                        while (rs.next()) {
+                            page++;
+                            lastId = rs.getLong(1);
+                            String group = compactSchema ? groupName(c, db, rs.getInt(2))
+                                            : rs.getString(2);
+                            Blob data = rs.getBlob(6);
+                            try (InputStream in = data.getBinaryStream()) {
+                                writer.write(group, readKey(rs, 3), rs.getLong(4), rs.getInt(5),
+                                                data.length(), in);
+                            } finally {
+                                data.free();
+                            }
+                        }
+                    }
+                } while (page >= exportBatchSize);
+            }
+            writer.finish();
+            rows = writer.rows();
+        } catch (Exception e) {
+            tmp.delete();
+            throw e;
+        }
+        java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return rows;
+    }
+
+    /**
+     * Imports every export file in folder, the files in parallel and their rows in batches.
+     * Rows are routed by group and key, so an export can be imported into a store with a
+     * different number of dbs or tables, but not into another layout, e.g. partition-aware or
+     * not. Rows already expired are skipped, existing rows with the same group and key are
+     * replaced. Rows are only committed once a checksum of the file vouched for them, so a damaged
+     * file fails the import with none of the rows after its last sound block stored. Returns the
+     * number of rows imported
+     */
+    public long importFrom(File folder) throws Exception {
+        long start = System.currentTimeMillis();
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(H22ExportFormat.SUFFIX));
+        if (files == null || files.length == 0) {
+            return 0;
+        }
+        ExecutorService importers = Executors.newFixedThreadPool(
+                        Math.max(1, Math.min(startupThreads, files.length)),
+                        daemonThreads("h22-import-%d"));
+        long rows = 0;
+        try {
+            List<Future<Long>> shards = new ArrayList<>();
+            for (File file : files) {
+                shards.add(importers.submit(() -> importFile(file)));
+            }
+            for (Future<Long> shard : shards) {
+                rows += shard.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to import H22 Cache from " + folder, e.getCause());
+        } finally {
+            importers.shutdown();
+        }
+        logger.info("Imported " + rows + " rows into H22 cache from " + folder + " in "
+                        + (System.currentTimeMillis() - start) + "ms");
+        return rows;
+    }
+
+    private long importFile(File file) throws Exception {
+        long rows = 0;
+        long now = System.currentTimeMillis();
+        // db -> connection holding the uncommitted batch
+        Connection[] connections = new Connection[numberOfDbs];
+        PreparedStatement[][] batches = new PreparedStatement[numberOfDbs][numberOfTablesPerDb];
+        // db -> references held by the rows the import overwrites, dropped as the rows commit
+        List<Map<String, Integer>> released = new ArrayList<>();
+        for (int db = 0; db < numberOfDbs; db++) {
+            released.add(new HashMap<>());
+        }
+        int[] pending = new int[numberOfDbs];
+        long verified = 0;
+        try (H22ExportFormat.Reader reader = new H22ExportFormat.Reader(file)) {
+            if (!layout(reader.schemaVersion).equals(layout(schemaVersion()))) {
+                throw new IOException(file + " was exported from a " + reader.schemaVersion
+                                + " store, it does not fit this " + schemaVersion() + " store");
+            }
+            while (reader.next()) {
+                if (reader.verifiedRows() > verified) {
+                    // everything read before this row is sound
+                    for (int db = 0; db < numberOfDbs; db++) {
+                        if (connections[db] != null) {
+                            commitBatches(connections[db], batches[db], released.get(db));
+                            pending[db] = 0;
+                        }
+                    }
+                    verified = reader.verifiedRows();
+                }
+                if (reader.expires() > 0 && reader.expires() <= now) {
+                    continue;
+                }
+                Fqn fqn = new Fqn(reader.group(), reader.key());
+                int db = db(fqn);
+                if (connections[db] == null) {
+                    awaitCompaction(db);
+                    Optional<Connection> opt = createBulkConnection(false, db);
+                    if (!opt.isPresent()) {
+                        throw new SQLException("H22 cache db:" + db + " is not available");
+                    }
+                    connections[db] = opt.get();
+                }
+                Connection c = connections[db];
+                if (dedupMinBytes > 0) {
+                    releaseDigest(c, fqn, released.get(db));
+                }
+                if (reader.length() > spillBytes) {
+                    // too big to hold in a batch, stream it in on its own
+                    try (PreparedStatement stmt = c.prepareStatement(upsertSQL(table(fqn)))) {
+                        bindRow(stmt, c, fqn, reader.expires(), reader.partition(), 0);
+                        stmt.setBinaryStream(4, reader.value(), reader.length());
+                        stmt.execute();
+                    }
+                } else {
+                    PreparedStatement stmt = batches[db][table(fqn)];
+                    if (stmt == null) {
+                        stmt = c.prepareStatement(upsertSQL(table(fqn)));
+                        batches[db][table(fqn)] = stmt;
+                    }
+                    bindRow(stmt, c, fqn, reader.expires(), reader.partition(), 0);
+                    stmt.setBytes(4, IOUtils.toByteArray(reader.value(), reader.length()));
+                    stmt.addBatch();
+                }
+                filterPut(fqn);
+                loading.remove(fqn.id);
+                valueHashes.get(db).invalidate(fqn.id);
+                rows++;
+                if (++pending[db] >= exportBatchSize) {
+                    // keeps the batches small, the rows stay uncommitted until verified
+                    executeBatches(batches[db]);
+                    pending[db] = 0;
+                }
+            }
+            for (int db = 0; db < numberOfDbs; db++) {
+                if (connections[db] != null) {
+                    commitBatches(connections[db], batches[db], released.get(db));
+                }
+            }
+        } finally {
+            for (int db = 0; db < numberOfDbs; db++) {
+                for (PreparedStatement stmt : batches[db]) {
+                    if (stmt != null) {
+                        stmt.close();
+                    }
+                }
+                if (connections[db] != null) {
+                    // rolls back whatever did not make it into a batch
+                    connections[db].rollback();
+                    connections[db].close();
+                }
+            }
+        }
+        return rows;
+    }
+
+    private void commitBatches(Connection c, PreparedStatement[] batches,
+                    Map<String, Integer> released) throws SQLException {
+        executeBatches(batches);
+        dropReferences(c, released);
+        released.clear();
+        c.commit();
+    }
+
+    /**
+     * Imported values are stored in their rows. If the row about to be overwritten refers to a
+     * deduplicated value, that reference is cleared and counted in released to be dropped
+     */
+    private void releaseDigest(Connection c, Fqn fqn, Map<String, Integer> released)
+                    throws SQLException {
+        String table = "`" + TABLE_PREFIX + table(fqn) + "`";
+        String held;
+        try (PreparedStatement stmt = c.prepareStatement(
+                        "select cache_digest from " + table + " WHERE cache_id = ? FOR UPDATE")) {
+            stmt.setString(1, fqn.id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                held = rs.next() ? rs.getString(1) : null;
+            }
+        }
+        if (held == null) {
+            return;
+        }
+        try (PreparedStatement stmt = c.prepareStatement(
+                        "UPDATE " + table + " SET cache_digest = NULL WHERE cache_id = ?")) {
+            stmt.setString(1, fqn.id);
+            stmt.executeUpdate();
+        }
+        released.merge(held, 1, Integer::sum);
+    }
+
+    private void executeBatches(PreparedStatement[] batches) throws SQLException {
+        for (PreparedStatement stmt : batches) {
+            if (stmt != null) {
+                stmt.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * The part of a schema version that decides how rows are stored, without the number of dbs
+     * and tables rows are routed across
+     */
+    static String layout(String schemaVersion) {
+        String[] parts = schemaVersion.split(":");
+        StringBuilder layout = new StringBuilder(parts[0]);
+        for (int i = 3; i < parts.length; i++) {
+            layout.append(':').append(parts[i]);
+        }
+        return layout.toString();
+    }
+
+    /**
+     * The keys of the group that were hottest when this store last ran, hottest first. Empty if
+     * that was too long ago for the dbs to have been recovered
+     */
+    public List<String> getHotKeys(String groupName) {
+        return hotKeys.read(groupName, recoverOnRestart);
+    }
+
+    /**
+     * Time to live of the group's rows in ms, from mapstore.h22.ttl.seconds.[group] or else
+     * mapstore.h22.ttl.seconds. 0 means they never expire
+     */
+    long ttlMillis(String group) {
+        H22Config config = H22Config.current();
+        return ttlMillis.computeIfAbsent(group,
+                        g -> 1000L * config.getInt("mapstore.h22.ttl.seconds." + g,
+                                        config.getInt("mapstore.h22.ttl.seconds", 0, 0,
+                                                        Integer.MAX_VALUE),
+                                        0, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Deletes expired rows, walking the expiry index in small batches with a pause in between so
+     * the purge never competes with the cache for long
+     */
+    void reapExpired() {
+        long now = System.currentTimeMillis();
+        long reaped = 0;
+        try {
+            for (int db = 0; db < numberOfDbs; db++) {
+                if (!breakers[db].isClosed()) {
+                    continue;
+                }
+                for (int table = 0; table < numberOfTablesPerDb; table++) {
+                    int deleted;
+                    do {
+                        Optional<Connection> opt = createBulkConnection(true, db);
+                        if (!opt.isPresent()) {
+                            break;
+                        }
+                        try (Connection c = opt.get()) {
+                            deleted = deleteRows(c, table,
+                                            "cache_expires > 0 AND cache_expires <= ? LIMIT ?",
+                                            stmt -> {
+                                                stmt.setLong(1, now);
+                                                stmt.setInt(2, reaperBatchSize);
+                                                return true;
+                                            });
+                        }
+                        reaped += deleted;
+                        if (deleted >= reaperBatchSize && reaperPauseMillis > 0) {
+                            Thread.sleep(reaperPauseMillis);
+                        }
+                    } while (deleted >= reaperBatchSize);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.warning("unable to purge expired rows : " + e.getMessage());
+        }
+        if (reaped > 0) {
+            logger.info("Purged " + reaped + " expired rows from H22 cache in "
+                            + (System.currentTimeMillis() - now) + "ms");
+        }
+    }
+
+    /**
+     * Whether a quota is set, only then are access times tracked and the quota checked
+     */
+    private boolean quotaEnabled() {
+        return quotaMaxRows > 0 || quotaMaxMegabytes > 0;
+    }
+
+    /**
+     * Remembers that the row was read, the time is written later in a batch by
+     * {@link #flushAccessTimes()} rather than costing a write on every read
+     */
+    private void recordAccess(Fqn fqn) {
+        if (!quotaEnabled()) {
+            return;
+        }
+        Map<String, Long> pending = pendingAccess.get(db(fqn));
+        if (pending.size() < accessBatchMax || pending.containsKey(fqn.id)) {
+            pending.put(fqn.id, System.currentTimeMillis());
+        }
+    }
+
+    void flushAccessTimes() {
+        for (int db = 0; db < numberOfDbs; db++) {
+            Map<String, Long> pending = pendingAccess.get(db);
+            if (pending.isEmpty() || !breakers[db].isClosed()) {
+                continue;
+            }
+            List<List<Entry<String, Long>>> byTable = new ArrayList<>();
+            for (int table = 0; table < numberOfTablesPerDb; table++) {
+                byTable.add(new ArrayList<>());
+            }
+            for (Iterator<Entry<String, Long>> it = pending.entrySet().iterator(); it.hasNext();) {
+                Entry<String, Long> access = it.next();
+                it.remove();
+                byTable.get(table(access.getKey())).add(access);
+            }
+            try {
+                Optional<Connection> opt = createBulkConnection(false, db);
+                if (!opt.isPresent()) {
+                    continue;
+                }
+                try (Connection c = opt.get()) {
+                    for (int table = 0; table < numberOfTablesPerDb; table++) {
+                        if (byTable.get(table).isEmpty()) {
+                            continue;
+                        }
+                        try (PreparedStatement stmt = c.prepareStatement("UPDATE " + TABLE_PREFIX
+                                        + table + " SET cache_accessed = ? WHERE cache_id = ?")) {
+                            for (Entry<String, Long> access : byTable.get(table)) {
+                                stmt.setLong(1, access.getValue());
+                                stmt.setString(2, access.getKey());
+                                stmt.addBatch();
+                            }
+                            stmt.executeBatch();
+                        }
+                    }
+                    c.commit();
+                }
+            } catch (SQLException e) {
+                logger.warning("unable to write access times for db" + db + " : " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used rows of every db over its row or size budget. Rows are
+     * evicted from each table in proportion to its size, which, with keys hashed evenly across
+     * tables, approximates a global LRU for the db. h2 does not give the space of deleted rows
+     * back, so the file size says little about how many rows fit: a db over its size budget
+     * keeps as many rows as its live bytes allow, and is compacted afterwards if it may be
+     * taken offline, see {@link #compactOverQuota(int)}
+     */
+    void evictOverQuota() {
+        if (!quotaEnabled()) {
+            return;
+        }
+        for (int db = 0; db < numberOfDbs; db++) {
+            H22HikariPool pool = pools[db];
+            if (pool == null || !breakers[db].isClosed()) {
+                continue;
+            }
+            // compact a db over its size budget if rows went or the file grew as much as
+            // compactNext waits for since last time, h2 adds a little on every reopen
+            boolean compact = false;
+            try {
+                Optional<Connection> opt = pool.unboundedConnection();
+                if (!opt.isPresent()) {
+                    continue;
+                }
+                try (Connection c = opt.get()) {
+                    long[] tableRows = new long[numberOfTablesPerDb];
+                    long rows = 0;
+                    // bytes of the values and keys the rows hold, what a compacted db needs
+                    long live = 0;
+                    for (int table = 0; table < numberOfTablesPerDb; table++) {
+                        try (Statement stmt = c.createStatement();
+                                        ResultSet rs = stmt.executeQuery("select count(*), "
+                                                        + "coalesce(sum(length(CACHE_DATA)), 0) + coalesce(sum(length(cache_key)), 0) from "
+                                                        + TABLE_PREFIX + table)) {
+                            rs.next();
+                            tableRows[table] = rs.getLong(1);
+                            rows += tableRows[table];
+                            live += rs.getLong(2);
+                        }
+                    }
+                    if (dedupMinBytes > 0) {
+                        try (Statement stmt = c.createStatement();
+                                        ResultSet rs = stmt.executeQuery(
+                                                        "select coalesce(sum(length(CACHE_DATA)), 0) from cache_values")) {
+                            rs.next();
+                            live += rs.getLong(1);
+                        }
+                    }
+                    long excess = 0;
+                    if (quotaMaxRows > 0 && rows > quotaMaxRows) {
+                        // evict down to 90% so we are not back here on the next put
+                        excess = rows - (quotaMaxRows * 9L / 10);
+                    }
+                    long budget = quotaMaxMegabytes * 1024L * 1024L;
+                    long size = (quotaMaxMegabytes > 0)
+                                    ? FileUtils.sizeOfDirectory(new File(pool.folderName)) : 0;
+                    if (quotaMaxMegabytes > 0 && rows > 0 && size > budget) {
+                        compact = size * 100 > compactedBytes[db] * (100L + compactGrowthPercent);
+                        long bytesPerRow = live / rows + ROW_OVERHEAD_BYTES;
+                        excess = Math.max(excess, rows - (budget * 9 / 10) / bytesPerRow);
+                    }
+                    if (excess > 0) {
+                        beginBulkDelete(db);
+                        long evicted = 0;
+                        long assigned = 0;
+                        long counted = 0;
+                        for (int table = 0; table < numberOfTablesPerDb; table++) {
+                            counted += tableRows[table];
+                            long toEvict = Math.round((double) excess * counted / rows) - assigned;
+                            assigned += toEvict;
+                            evicted += evictColdest(c, table, toEvict);
+                        }
+                        valueHashes.get(db).invalidateAll();
+                        logger.info("H22 cache db:" + db + " over quota, evicted " + evicted
+                                        + " of " + rows + " rows");
+                        compact |= size > budget && evicted > 0;
+                    }
+                }
+                if (compact) {
+                    final int compacted = db;
+                    compactor.execute(() -> compactOverQuota(compacted));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.warning("unable to evict from db" + db + " : " + e.getMessage());
+            }
+        }
+    }
+
+    private long evictColdest(Connection c, int table, long toEvict)
+                    throws SQLException, InterruptedException {
+        long evicted = 0;
+        while (evicted < toEvict) {
+            long batch = Math.min(reaperBatchSize, toEvict - evicted);
+            int deleted = deleteRows(c, table, "cache_id IN (SELECT cache_id FROM " + TABLE_PREFIX
+                            + table + " ORDER BY cache_accessed LIMIT ?)", stmt -> {
+                                stmt.setLong(1, batch);
+                                return true;
+                            });
+            evicted += deleted;
+            if (deleted == 0) {
+                break;
+            }
+            if (evicted < toEvict && reaperPauseMillis > 0) {
+                Thread.sleep(reaperPauseMillis);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Lets a running task finish its batch, periodic tasks are cancelled
+     */
+    private static void stop(ExecutorService executor) {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void compactNext() {
+        int db = nextCompaction;
+        nextCompaction = (db + 1) % numberOfDbs;
+        compact(db, false);
+    }
+
+    /**
+     * Checkpoints the db, then compacts its files if they grew by compactGrowthPercent since
+     * they were last compacted and nothing used the db for compactQuietMillis, or for
+     * compactMaxDeferralMillis put off a compaction that way, or if force is set. h2 only gives
+     * the space of deleted and overwritten rows back on SHUTDOWN COMPACT, so the db is closed,
+     * compacted and reopened, offline for the time it takes. Returns the bytes reclaimed
+     */
+    long compact(int db, boolean force) {
+        return compact(db, force, false);
+    }
+
+    /**
+     * Compacts a db over its size budget under the same limits as a scheduled compaction, but
+     * whatever its growth: a db too big or too busy to be taken offline now is left to
+     * eviction, and counted as deferred
+     */
+    long compactOverQuota(int db) {
+        return compact(db, false, true);
+    }
+
+    private long compact(int db, boolean force, boolean overQuota) {
+        H22HikariPool pool = pools[db];
+        if (pool == null || compacting.contains(db) || !breakers[db].isClosed()) {
+            return 0;
+        }
+        File folder = new File(pool.folderName);
+        try {
+            Optional<Connection> opt = pool.unboundedConnection();
+            if (!opt.isPresent()) {
+                return 0;
+            }
+            try (Connection c = opt.get(); Statement stmt = c.createStatement()) {
+                stmt.execute("CHECKPOINT");
+            }
+            long before = FileUtils.sizeOfDirectory(folder);
+            if (!force) {
+                if (!overQuota && (before < compactMinMegabytes * 1024L * 1024L
+                                || before * 100 <= compactedBytes[db] * (100L + compactGrowthPercent))) {
+                    return 0;
+                }
+                if (before > compactMaxMegabytes * 1024L * 1024L) {
+                    logger.info("H22 cache db:" + db + " is " + before / (1024 * 1024)
+                                    + "MB, too big to compact");
+                    if (overQuota) {
+                        deferredCompactions.incrementAndGet();
+                    }
+                    return 0;
+                }
+                if (!quietOrOverdue(db)) {
+                    deferredCompactions.incrementAndGet();
+                    return 0;
+                }
+            }
+            deferredSince[db] = 0;
+            return compactOffline(db, pool, before);
+        } catch (Exception e) {
+            logger.warning("unable to compact db" + db + " : " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Whether nothing used the db for compactQuietMillis, or its compaction was put off for
+     * compactMaxDeferralMillis because something always did
+     */
+    private boolean quietOrOverdue(int db) {
+        long now = System.currentTimeMillis();
+        if (now - lastUsed.get(db) >= compactQuietMillis) {
+            return true;
+        }
+        if (deferredSince[db] == 0) {
+            deferredSince[db] = now;
+        }
+        if (now - deferredSince[db] < compactMaxDeferralMillis) {
+            return false;
+        }
+        logger.info("H22 cache db:" + db + " was not quiet for " + (now - deferredSince[db])
+                        + "ms, compacting it anyway");
+        return true;
+    }
+
+    private long compactOffline(int db, H22HikariPool pool, long before)
+                    throws InterruptedException {
+        long start = System.nanoTime();
+        compacting.add(db);
+        try {
+            // let the calls already running finish rather than fail them
+            long drainUntil = System.currentTimeMillis() + 1000;
+            while (pool.activeConnections() > 0 && System.currentTimeMillis() < drainUntil) {
+                Thread.sleep(5);
+            }
+            Optional<Connection> opt = pool.unboundedConnection();
+            if (opt.isPresent()) {
+                Connection c = opt.get();
+                try {
+                    c.createStatement().execute("SHUTDOWN COMPACT");
+                } finally {
+                    try {
+                        c.close();
+                    } catch (SQLException e) {
+                        // the db closed under it
+                    }
+                }
+            }
+            pool.close();
+            H22HikariPool reopened = new H22HikariPool(dbRoot, db, pool.database);
+            reopened.configure(H22Config.current());
+            if (pools[db] == pool) {
+                pools[db] = reopened;
+            } else {
+                // rebuilt meanwhile
+                reopened.close();
+            }
+        } catch (SQLException | RuntimeException e) {
+            logger.warning("unable to compact db" + db + ", rebuilding it : " + e.getMessage());
+            endCompaction(db);
+            dispose(db, true);
+            return 0;
+        } finally {
+            endCompaction(db);
+        }
+        long pauseMillis = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start,
+                        TimeUnit.NANOSECONDS);
+        long after = FileUtils.sizeOfDirectory(new File(pool.folderName));
+        compactedBytes[db] = after;
+        compactions.incrementAndGet();
+        reclaimedBytes.addAndGet(Math.max(0, before - after));
+        maxCompactionPauseMillis = Math.max(maxCompactionPauseMillis, pauseMillis);
+        logger.info("H22 cache db:" + db + " compacted from " + before + " to " + after
+                        + " bytes, offline for " + pauseMillis + "ms");
+        // the files can grow while it is offline, e.g. with the log of the compaction
+        return Math.max(0, before - after);
+    }
+
+    private void endCompaction(int db) {
+        compactionEnds.set(db, System.nanoTime());
+        synchronized (compacting) {
+            compacting.remove(db);
+            compacting.notifyAll();
+        }
+    }
+
+    /**
+     * Waits up to compactWaitMillis for the db to come back if it is compacting, returns whether
+     * it is back
+     */
+    private boolean awaitCompaction(int db) {
+        if (!compacting.contains(db)) {
+            return true;
+        }
+        long until = System.currentTimeMillis() + compactWaitMillis;
+        synchronized (compacting) {
+            while (compacting.contains(db)) {
+                long wait = until - System.currentTimeMillis();
+                if (wait <= 0) {
+                    logger.warning("H22 cache db:" + db + " still compacting after "
+                                    + compactWaitMillis + "ms, not waiting any longer");
+                    return false;
+                }
+                try {
+                    compacting.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean mightContain(Fqn fqn) {
+        H22BloomFilter filter = filters.get(db(fqn));
+        return filter == null || filter.mightContain(Long.parseLong(fqn.id));
+    }
+
+    private void filterPut(Fqn fqn) {
+        if (bloomExpectedInsertions < 1) {
+            return;
+        }
+        long id = Long.parseLong(fqn.id);
+        int db = db(fqn);
+        // check the rebuilding filter first, if it is gone by now it has become the current one
+        H22BloomFilter next = rebuilding.get(db);
+        if (next != null) {
+            next.put(id);
+        }
+        H22BloomFilter filter = filters.get(db);
+        if (filter != null) {
+            filter.put(id);
+        }
+    }
+
+    private void resetFilter(int db) {
+        if (bloomExpectedInsertions > 0) {
+            filters.set(db, new H22BloomFilter(bloomExpectedInsertions, bloomFpp));
+        }
+    }
+
+    void rebuildFilters() {
+        for (int db = 0; db < numberOfDbs; db++) {
+            rebuildFilter(db);
+        }
+    }
+
+    /**
+     * Loads a new filter from the ids in the db. Ids put while it loads are added to it as well,
+     * so it is complete when it replaces the current filter
+     */
+    private void rebuildFilter(int db) {
+        long start = System.currentTimeMillis();
+        H22BloomFilter filter = new H22BloomFilter(bloomExpectedInsertions, bloomFpp);
+        rebuilding.set(db, filter);
+        long ids = 0;
+        try {
+            Optional<Connection> opt = createBulkReadConnection(db);
+            if (!opt.isPresent()) {
+                return;
+            }
+            try (Connection c = opt.get()) {
+                for (int table = 0; table < numberOfTablesPerDb; table++) {
+                    try (Statement stmt = c.createStatement()) {
+                        stmt.setFetchSize(1000);
+                        ResultSet rs = stmt.executeQuery("select cache_id from " + TABLE_PREFIX + table);
+                        while (rs.next()) {
+                            filter.put(rs.getLong(1));
+                            ids++;
+                        }
+                    }
+                }
+            }
+            Runnable hook = afterFilterLoad;
+            if (hook != null) {
+                hook.run();
+            }
+            filters.set(db, filter);
+            logger.info("H22 cache db:" + db + " bloom filter loaded " + ids + " ids in "
+                            + (System.currentTimeMillis() - start) + "ms, "
+                            + filter.sizeInBytes() / 1024 + "KB, fpp "
+                            + String.format("%.4f", filter.currentFpp()) + ", "
+                            + filteredMisses.get() + " misses answered without h2 so far");
+        } catch (SQLException e) {
+            logger.warning("unable to rebuild bloom filter for db" + db + " : " + e.getMessage());
+        } finally {
+            rebuilding.set(db, null);
+        }
+    }
+
+    private void lastValueBytes(long bytes) {
+        if (trace != null) {
+            valueBytes.get()[0] = bytes;
+        }
+    }
+
+    /**
+     * Serialized size of the value the calling thread last put or got, -1 if it did not get one.
+     * Only kept while tracing
+     */
+    long lastValueBytes() {
+        long[] bytes = valueBytes.get();
+        long last = bytes[0];
+        bytes[0] = -1;
+        return last;
+    }
+
+    /**
+     * Number of gets that shared the read of a concurrent get of the same key
+     */
+    public long getCoalescedLoads() {
+        return coalescedLoads.get();
+    }
+
+    /**
+     * Number of gets that missed because the load they waited for took too long
+     */
+    public long getCoalescedTimeouts() {
+        return coalescedTimeouts.get();
+    }
+
+    /**
+     * Number of loads answered as misses by the bloom filters without querying h2
+     */
+    public long getFilteredMisses() {
+        return filteredMisses.get();
+    }
+
+    /**
+     * Number of puts skipped because the value was already stored
+     */
+    public long getSkippedPuts() {
+        return skippedPuts.get();
+    }
+
+    /**
+     * Serialized bytes the skipped puts did not write
+     */
+    public long getSkippedBytes() {
+        return skippedBytes.get();
+    }
+
+    /**
+     * Number of puts whose value was already stored under another key, so only a reference to
+     * it was written
+     */
+    public long getDedupedPuts() {
+        return dedupedPuts.get();
+    }
+
+    /**
+     * Serialized bytes the deduplicated puts did not write
+     */
+    public long getDedupedBytes() {
+        return dedupedBytes.get();
+    }
+
+    /**
+     * Number of times a db was compacted
+     */
+    public long getCompactions() {
+        return compactions.get();
+    }
+
+    /**
+     * Bytes of db files given back by compactions
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    /**
+     * Number of compactions put off because the db was in use, or, over its size budget, too
+     * big to be taken offline
+     */
+    public long getDeferredCompactions() {
+        return deferredCompactions.get();
+    }
+
+    /**
+     * Longest time a db was offline for a compaction
+     */
+    public long getMaxCompactionPauseMillis() {
+        return maxCompactionPauseMillis;
+    }
+
+    private void handleError(final Exception ex, final Fqn fqn) {
+        // debug all errors
+        logger.fine(ex.getMessage() + " on " + fqn);
+        int db = db(fqn);
+        if (lastLog + limitErrorLogMillis < System.currentTimeMillis()) {
+            lastLog = System.currentTimeMillis();
+            logger.warning("Error #" + errorCounter[db] + " " + ex.getMessage() + " on " + fqn);
+
+        }
+
+        errorCounter[db]++;
+        if (recoverAfterFailedProbes > 0
+                        && breakers[db].failedProbes() >= recoverAfterFailedProbes) {
+            errorCounter[db] = 0;
+            logger.severe("H22 Cache db" + db + " failed " + recoverAfterFailedProbes
+                            + " probes in a row, rebuilding it");
+            dispose(db, true);
+        }
+
+    }
+
+    /**
+     * Counts the failure against the db's breaker if h2 caused it, rather than the value. A call
+     * that overlapped a compaction of its db is not counted at all, nor logged, returns whether
+     * it was
+     */
+    boolean recordFailure(int db, Exception e, long start) {
+        if (overlapsCompaction(db, start)) {
+            // the db went offline for a compaction under the call, the db did not fail
+            return false;
+        }
+        if (e instanceof SQLException || e.getCause() instanceof SQLException) {
+            breakers[db].onFailure();
+        } else {
+            breakers[db].onSuccess(System.nanoTime() - start);
+        }
+        return true;
+    }
+
+    /**
+     * Whether a call begun at the given System.nanoTime() overlapped a compaction of its db
+     */
+    private boolean overlapsCompaction(int db, long start) {
+        return compacting.contains(db) || start - compactionEnds.get(db) < 0;
+    }
+
+    private void markStale(Fqn fqn) {
+        int db = db(fqn);
+        valueHashes.get(db).invalidate(fqn.id);
+        Set<String> stale = staleIds.get(db);
+        if (stale.size() < maxStaleIds) {
+            stale.add(fqn.id);
+        } else if (!stale.contains(fqn.id) && !staleOverflow[db]) {
+            logger.severe("H22 Cache db" + db + " missed more than " + maxStaleIds
+                            + " writes, it will be rebuilt once it is back");
+            staleOverflow[db] = true;
+        }
+    }
+
+    /**
+     * Deletes the rows of the ids whose writes were missed from every db that is back, or
+     * rebuilds the db if it missed too many to remember
+     */
+    void purgeStaleIds() {
+        for (int db = 0; db < numberOfDbs; db++) {
+            Set<String> stale = staleIds.get(db);
+            if (stale.isEmpty() || !breakers[db].isClosed()) {
+                continue;
+            }
+            if (staleOverflow[db]) {
+                dispose(db, true);
+                continue;
+            }
+            List<List<String>> byTable = new ArrayList<>();
+            for (int table = 0; table < numberOfTablesPerDb; table++) {
+                byTable.add(new ArrayList<>());
+            }
+            for (String id : stale) {
+                byTable.get(table(id)).add(id);
+            }
+            beginBulkDelete(db);
+            try {
+                Optional<Connection> opt = createBulkConnection(false, db);
+                if (!opt.isPresent()) {
+                    continue;
+                }
+                try (Connection c = opt.get()) {
+                    for (int table = 0; table < numberOfTablesPerDb; table++) {
+                        if (byTable.get(table).isEmpty()) {
+                            continue;
+                        }
+                        if (dedupMinBytes > 0) {
+                            // the references the rows hold are dropped with them
+                            for (String id : byTable.get(table)) {
+                                deleteRows(c, table, "cache_id = ?", stmt -> {
+                                    stmt.setString(1, id);
+                                    return true;
+                                });
+                            }
+                            continue;
+                        }
+                        try (PreparedStatement stmt = c.prepareStatement("DELETE FROM "
+                                        + TABLE_PREFIX + table + " WHERE cache_id = ?")) {
+                            for (String id : byTable.get(table)) {
+                                stmt.setString(1, id);
+                                stmt.addBatch();
+                            }
+                            stmt.executeBatch();
+                        }
+                    }
+                    c.commit();
+                }
+                int purged = 0;
+                for (List<String> ids : byTable) {
+                    stale.removeAll(ids);
+                    valueHashes.get(db).invalidateAll(ids);
+                    purged += ids.size();
+                }
+                logger.info("H22 cache db:" + db + " purged " + purged + " stale rows");
+            } catch (SQLException e) {
+                logger.warning("unable to purge stale rows from db" + db + " : " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Calls failed fast by the breakers of all dbs
+     */
+    public long getRejectedCalls() {
+        long rejected = 0;
+        for (H22CircuitBreaker breaker : breakers) {
+            rejected += breaker.rejected();
+        }
+        return rejected;
+    }
+
+    H22CircuitBreaker breaker(int db) {
+        return breakers[db];
+    }
+
+    H22HikariPool pool(int db) {
+        return pools[db];
+    }
+
+    private String _getGroupCount(String groupName) throws SQLException {
+        Fqn fqn = new Fqn(groupName);
+        long ret = 0;
+        for (int db = 0; db < numberOfDbs; db++) {
+            Optional<Connection> opt = createBulkReadConnection(db);
+            if (!opt.isPresent()) {
+                continue;
+            }
+            Connection c = opt.get();
+            for (int table = 0; table < numberOfTablesPerDb; table++) {
+                PreparedStatement stmt = c.prepareStatement("select count(*) from " + TABLE_PREFIX
                                 + table + " where cache_group = ?");
-                stmt.setString(1, fqn.group);
+                if (!bindGroup(stmt, 1, c, db, fqn.group, false)) {
+                    stmt.close();
+                    break;
+                }
                 ResultSet rs = stmt.executeQuery();
                 if (rs != null) {
                     while (rs.next()) {
@@ -705,7 +3009,11 @@ public class H22MapStoreStorage {
     }
 
     private int table(Fqn fqn) {
-        int hash = Math.abs(fqn.id.hashCode());
+        return table(fqn.id);
+    }
+
+    private int table(String id) {
+        int hash = Math.abs(id.hashCode());
         return hash % numberOfTablesPerDb;
     }
 
@@ -2,20 +2,45 @@ package com.dotcms.hazelcast.mapstore;
 
 import java.io.File;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.MapLoaderLifecycleSupport;
 import com.hazelcast.core.MapStore;
+import com.hazelcast.core.Member;
+import com.hazelcast.core.MigrationEvent;
+import com.hazelcast.core.MigrationListener;
+import com.hazelcast.core.Partition;
 
 
 
-public class H22RegionMapStore implements MapStore<String, Object> {
+public class H22RegionMapStore implements MapStore<String, Object>, MapLoaderLifecycleSupport {
 
-    static H22MapStoreStorage cache;
+    private static final Logger logger = Logger.getLogger(H22RegionMapStore.class.getName());
+
+    private volatile H22MapStoreStorage cache;
+    // set once hazelcast destroyed the store, late calls must not open the dbs again
+    private volatile boolean destroyed;
     final String region;
-    final String path;
+    String path;
+    HazelcastInstance hazelcastInstance;
+    // registration of the listener that drops the rows of partitions migrating to this member
+    String migrationListener;
+
+    // all: loadAllKeys returns every key of the region, hot: only the keys that were hottest
+    // before the restart, hottest first
+    final boolean loadHotKeysOnly = "hot".equalsIgnoreCase(
+                    HazelH2PropertyBundle.getProperty("mapstore.h22.loadallkeys", "all"));
+
     public H22RegionMapStore(String region) {
         this(region, null);
     }
@@ -23,62 +48,202 @@ public class H22RegionMapStore implements MapStore<String, Object> {
     public H22RegionMapStore(String region, String tmpPath) {
         super();
         this.region = region;
-       
-
-        if (tmpPath == null) {
-            File tempDir = new File(HazelH2PropertyBundle.getProperty("mapstore.h2.database.folder", "H22MapStore"));
-            tempDir.mkdirs();
-            tmpPath = tempDir.getAbsolutePath();
-        }
         this.path = tmpPath;
-        initCache();
-
-        
     }
 
-    private  synchronized void initCache(){
-        if (cache == null) {
-            Logger logger = Logger.getLogger(this.getClass().getName());
-            logger.info("Building H22MapStore:" + path);
-            System.out.println("Building H22MapStore : " + path);
+    /**
+     * Called by hazelcast when the map is created. mapstore.h2.database.folder can be set in the
+     * map-store properties to give the map its own dbs
+     */
+    @Override
+    public void init(HazelcastInstance hazelcastInstance, Properties properties, String mapName) {
+        this.hazelcastInstance = hazelcastInstance;
+        if (properties != null && properties.getProperty("mapstore.h2.database.folder") != null) {
+            this.path = properties.getProperty("mapstore.h2.database.folder");
+        }
+        if (storage().isPartitionAware() && hazelcastInstance != null) {
+            migrationListener = hazelcastInstance.getPartitionService()
+                            .addMigrationListener(new PartitionPurge());
+        } else if (hazelcastInstance != null && storage().isRecovered()
+                        && hazelcastInstance.getCluster().getMembers().size() > 1) {
+            logger.warning("H22 map store of " + region + " joins a running cluster with dbs kept "
+                            + "from a previous run. Entries changed on other members meanwhile can be "
+                            + "loaded stale, set mapstore.h22.partition.aware=true to drop them");
+        }
+    }
 
+    /**
+     * Called by hazelcast when the map is destroyed or the member shuts down, the dbs are closed
+     * once no other map uses them
+     */
+    @Override
+    public synchronized void destroy() {
+        destroyed = true;
+        if (migrationListener != null) {
+            hazelcastInstance.getPartitionService().removeMigrationListener(migrationListener);
+            migrationListener = null;
+        }
+        if (cache != null) {
+            cache.release();
+            cache = null;
+        }
+    }
 
-            this.cache = new H22MapStoreStorage(path);
-            try{
-                this.cache.init();
+    H22MapStoreStorage storage() {
+        H22MapStoreStorage storage = cache;
+        if (storage != null) {
+            return storage;
+        }
+        synchronized (this) {
+            if (destroyed) {
+                // nothing would ever release what this acquired
+                throw new IllegalStateException("H22 map store of " + region + " is destroyed");
             }
-            catch(Exception e){
-                throw new RuntimeException(e);
+            if (cache == null) {
+                if (path == null) {
+                    path = HazelH2PropertyBundle.getProperty("mapstore.h2.database.folder", "H22MapStore");
+                }
+                File tempDir = new File(path);
+                tempDir.mkdirs();
+                cache = H22MapStoreStorage.acquire(tempDir.getAbsolutePath());
             }
-
+            return cache;
         }
     }
-    
-    
+
+
 
     @Override
     public Object load(String key) {
-        return cache.get(region, key);
+        H22MapStoreStorage storage = storage();
+        if (storage.trace == null) {
+            return storage.get(region, key);
+        }
+        long start = System.nanoTime();
+        Object value = storage.get(region, key);
+        storage.trace.record(H22AccessTrace.Op.LOAD, region, key, storage.lastValueBytes(), start);
+        return value;
     }
 
     @Override
     public Map<String, Object> loadAll(Collection<String> keys) {
         Map<String, Object> map = new HashMap<>();
-        for (String key : loadAllKeys()) {
-            map.put(key, load(key));
+        for (String key : keys) {
+            Object value = load(key);
+            if (value != null) {
+                map.put(key, value);
+            }
         }
         return map;
     }
 
     @Override
     public Iterable<String> loadAllKeys() {
-        return cache.getKeys(region);
+        H22MapStoreStorage storage = storage();
+        if (storage.trace == null) {
+            return regionKeys();
+        }
+        long start = System.nanoTime();
+        Collection<String> keys = regionKeys();
+        storage.trace.record(H22AccessTrace.Op.LOAD_ALL_KEYS, region, null, keys.size(), start);
+        return keys;
+    }
+
+    private Collection<String> regionKeys() {
+        boolean ownedOnly = storage().isPartitionAware() && hazelcastInstance != null;
+        if (loadHotKeysOnly) {
+            List<String> keys = storage().getHotKeys(region);
+            if (ownedOnly) {
+                keys.removeIf(key -> !isLocal(
+                                hazelcastInstance.getPartitionService().getPartition(key)));
+            }
+            return keys;
+        }
+        if (ownedOnly) {
+            return loadKeys(ownedPartitions());
+        }
+        return storage().getKeys(region);
+    }
+
+    /**
+     * The keys stored for the given partitions, e.g. to reload the partitions this member took
+     * over after a migration. Needs mapstore.h22.partition.aware=true
+     */
+    public Set<String> loadKeys(Collection<Integer> partitions) {
+        return storage().getKeys(region, partitions);
+    }
+
+    /**
+     * The partitions this member currently owns
+     */
+    Set<Integer> ownedPartitions() {
+        Set<Integer> owned = new HashSet<>();
+        for (Partition partition : hazelcastInstance.getPartitionService().getPartitions()) {
+            if (isLocal(partition)) {
+                owned.add(partition.getPartitionId());
+            }
+        }
+        return owned;
+    }
+
+    /**
+     * Each member only stores the partitions it owns, so when a partition comes (back) to this
+     * member whatever its dbs hold for it may have been overwritten on other members in the
+     * meantime, e.g. after this member left and rejoined. The rows older than the migration are
+     * dropped on the maintenance thread, the entries themselves arrive with the migration and
+     * are stored again as they change
+     */
+    class PartitionPurge implements MigrationListener {
+
+        // partition -> when its migration to this member started
+        final Map<Integer, Long> started = new ConcurrentHashMap<>();
+
+        @Override
+        public void migrationStarted(MigrationEvent event) {
+            Member owner = event.getNewOwner();
+            if (owner != null && owner.localMember()) {
+                started.put(event.getPartitionId(), System.currentTimeMillis());
+            }
+        }
+
+        @Override
+        public void migrationCompleted(MigrationEvent event) {
+            Member owner = event.getNewOwner();
+            Long since = started.remove(event.getPartitionId());
+            if (owner != null && owner.localMember()) {
+                storage().removeLater(region, Collections.singleton(event.getPartitionId()),
+                                (since != null) ? since : System.currentTimeMillis());
+            }
+        }
+
+        @Override
+        public void migrationFailed(MigrationEvent event) {
+            started.remove(event.getPartitionId());
+        }
+    }
+
+    private boolean isLocal(Partition partition) {
+        Member owner = partition.getOwner();
+        return owner != null && owner.localMember();
+    }
+
+    int partitionOf(String key) {
+        if (hazelcastInstance == null || !storage().isPartitionAware()) {
+            return -1;
+        }
+        return hazelcastInstance.getPartitionService().getPartition(key).getPartitionId();
     }
 
     @Override
     public void store(String key, Object value) {
-        cache.put(region, key, value);
-
+        H22MapStoreStorage storage = storage();
+        if (storage.trace == null) {
+            storage.put(region, key, value, partitionOf(key));
+            return;
+        }
+        long start = System.nanoTime();
+        storage.put(region, key, value, partitionOf(key));
+        storage.trace.record(H22AccessTrace.Op.STORE, region, key, storage.lastValueBytes(), start);
     }
 
     @Override
@@ -91,8 +256,14 @@ public class H22RegionMapStore implements MapStore<String, Object> {
 
     @Override
     public void delete(String key) {
-        cache.remove(region, key);
-
+        H22MapStoreStorage storage = storage();
+        if (storage.trace == null) {
+            storage.remove(region, key);
+            return;
+        }
+        long start = System.nanoTime();
+        storage.remove(region, key);
+        storage.trace.record(H22AccessTrace.Op.DELETE, region, key, -1, start);
     }
 
     @Override
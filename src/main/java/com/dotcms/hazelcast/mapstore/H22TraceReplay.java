@@ -0,0 +1,267 @@
+package com.dotcms.hazelcast.mapstore;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays access traces recorded with mapstore.h22.trace.buffer.size against a storage, to
+ * reproduce a production workload locally. Keys are rebuilt from their hashes and values as byte
+ * arrays of the recorded size, so the store sees the same key distribution, value sizes and
+ * timing. Ops on the same key are replayed in their recorded order. Traces from several members
+ * are merged by wall clock, so they line up only as closely as the members' clocks did.
+ *
+ * <pre>
+ * java com.dotcms.hazelcast.mapstore.H22TraceReplay [trace file or folder] [db folder] [speed] [threads]
+ * </pre>
+ *
+ * A speed of 1 replays in real time, 10 ten times faster and 0 as fast as the store allows.
+ */
+public class H22TraceReplay {
+
+    private static final int OPS = H22AccessTrace.Op.values().length;
+    // what java serialization adds to a byte[]
+    private static final int BYTE_ARRAY_OVERHEAD = 27;
+
+    final H22MapStoreStorage storage;
+    final double speed;
+    final int threads;
+    final int maxInFlight;
+
+    public H22TraceReplay(H22MapStoreStorage storage, double speed, int threads) {
+        this.storage = storage;
+        this.speed = speed;
+        this.threads = Math.max(1, threads);
+        this.maxInFlight = this.threads * 1000;
+    }
+
+    /**
+     * Replays the records of the trace files in the order they were recorded, and returns the
+     * recorded and replayed latencies
+     */
+    public Report replay(List<File> files) throws Exception {
+        // one thread per lane and every key always on the same lane keeps each key's ops in order
+        List<ExecutorService> lanes = new ArrayList<>();
+        List<Latencies> replayed = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            lanes.add(Executors.newSingleThreadExecutor(
+                            H22MapStoreStorage.daemonThreads("h22-replay-" + i + "-%d")));
+            replayed.add(new Latencies());
+        }
+        Latencies recorded = new Latencies();
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        long start = System.nanoTime();
+        long first = -1;
+        long maxLagNanos = 0;
+        // the next record of every file, earliest first
+        PriorityQueue<H22AccessTrace.Reader> readers = new PriorityQueue<>(
+                        Comparator.comparingLong(H22TraceReplay::wallNanos));
+        try {
+            for (File file : files) {
+                H22AccessTrace.Reader reader = new H22AccessTrace.Reader(file);
+                if (reader.next()) {
+                    readers.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            while (!readers.isEmpty()) {
+                H22AccessTrace.Reader reader = readers.poll();
+                if (first < 0) {
+                    first = wallNanos(reader);
+                }
+                if (speed > 0) {
+                    long due = start + (long) ((wallNanos(reader) - first) / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } else {
+                        maxLagNanos = Math.max(maxLagNanos, -wait);
+                    }
+                }
+                recorded.add(reader.op, reader.durationNanos);
+                int lane = (int) ((reader.keyHash & Long.MAX_VALUE) % threads);
+                H22AccessTrace.Op op = reader.op;
+                String region = reader.region;
+                String key = "key-" + Long.toHexString(reader.keyHash);
+                long size = reader.size;
+                Latencies latencies = replayed.get(lane);
+                inFlight.acquire();
+                lanes.get(lane).execute(() -> {
+                    try {
+                        long opStart = System.nanoTime();
+                        apply(op, region, key, size);
+                        latencies.add(op, System.nanoTime() - opStart);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+                if (reader.next()) {
+                    readers.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+        } finally {
+            for (H22AccessTrace.Reader reader : readers) {
+                reader.close();
+            }
+            for (ExecutorService lane : lanes) {
+                lane.shutdown();
+            }
+            for (ExecutorService lane : lanes) {
+                lane.awaitTermination(1, TimeUnit.HOURS);
+            }
+        }
+        Latencies all = new Latencies();
+        for (Latencies latencies : replayed) {
+            all.addAll(latencies);
+        }
+        return new Report(recorded, all, System.nanoTime() - start, maxLagNanos);
+    }
+
+    private static long wallNanos(H22AccessTrace.Reader reader) {
+        return reader.startedMillis * 1000000L + reader.timeNanos;
+    }
+
+    private void apply(H22AccessTrace.Op op, String region, String key, long size) {
+        switch (op) {
+            case LOAD:
+                storage.get(region, key);
+                break;
+            case STORE:
+                int bytes = (int) Math.min(Integer.MAX_VALUE - 8,
+                                Math.max(0, size - BYTE_ARRAY_OVERHEAD));
+                storage.put(region, key, new byte[bytes]);
+                break;
+            case DELETE:
+                storage.remove(region, key);
+                break;
+            case LOAD_ALL_KEYS:
+                storage.getKeys(region);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Latencies by op, each list only ever touched by one thread at a time
+     */
+    static class Latencies {
+
+        final long[][] nanos = new long[OPS][16];
+        final int[] counts = new int[OPS];
+
+        void add(H22AccessTrace.Op op, long value) {
+            int i = op.ordinal();
+            if (counts[i] == nanos[i].length) {
+                nanos[i] = Arrays.copyOf(nanos[i], nanos[i].length * 2);
+            }
+            nanos[i][counts[i]++] = value;
+        }
+
+        void addAll(Latencies other) {
+            for (H22AccessTrace.Op op : H22AccessTrace.Op.values()) {
+                for (int j = 0; j < other.counts[op.ordinal()]; j++) {
+                    add(op, other.nanos[op.ordinal()][j]);
+                }
+            }
+        }
+
+        int count(H22AccessTrace.Op op) {
+            return counts[op.ordinal()];
+        }
+
+        /**
+         * The latency in microseconds under which the given share of the op's calls finished
+         */
+        long percentileMicros(H22AccessTrace.Op op, double percentile) {
+            int i = op.ordinal();
+            if (counts[i] == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(nanos[i], counts[i]);
+            Arrays.sort(sorted);
+            int index = (int) Math.min(counts[i] - 1, Math.ceil(percentile * counts[i]) - 1);
+            return sorted[Math.max(0, index)] / 1000;
+        }
+    }
+
+    public static class Report {
+
+        final Latencies recorded;
+        final Latencies replayed;
+        final long wallNanos;
+        final long maxLagNanos;
+
+        Report(Latencies recorded, Latencies replayed, long wallNanos, long maxLagNanos) {
+            this.recorded = recorded;
+            this.replayed = replayed;
+            this.wallNanos = wallNanos;
+            this.maxLagNanos = maxLagNanos;
+        }
+
+        public int ops() {
+            int ops = 0;
+            for (H22AccessTrace.Op op : H22AccessTrace.Op.values()) {
+                ops += replayed.count(op);
+            }
+            return ops;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("replayed ").append(ops()).append(" ops in ")
+                            .append(TimeUnit.MILLISECONDS.convert(wallNanos, TimeUnit.NANOSECONDS))
+                            .append("ms, fell behind the trace by up to ")
+                            .append(TimeUnit.MILLISECONDS.convert(maxLagNanos, TimeUnit.NANOSECONDS))
+                            .append("ms\n");
+            for (H22AccessTrace.Op op : H22AccessTrace.Op.values()) {
+                if (replayed.count(op) == 0) {
+                    continue;
+                }
+                sb.append(String.format("%-14s %8d ops  p50 %7dus (recorded %7dus)  p99 %7dus (recorded %7dus)%n",
+                                op, replayed.count(op), replayed.percentileMicros(op, 0.5),
+                                recorded.percentileMicros(op, 0.5), replayed.percentileMicros(op, 0.99),
+                                recorded.percentileMicros(op, 0.99)));
+            }
+            return sb.toString();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: H22TraceReplay [trace file or folder] [db folder] [speed] [threads]");
+            System.exit(1);
+        }
+        File trace = new File(args[0]);
+        List<File> files = new ArrayList<>();
+        if (trace.isDirectory()) {
+            File[] traces = trace.listFiles((dir, name) -> name.endsWith(H22AccessTrace.SUFFIX));
+            if (traces != null) {
+                files.addAll(Arrays.asList(traces));
+            }
+        } else {
+            files.add(trace);
+        }
+        double speed = (args.length > 2) ? Double.parseDouble(args[2]) : 1;
+        int threads = (args.length > 3) ? Integer.parseInt(args[3]) : 16;
+
+        H22MapStoreStorage storage = new H22MapStoreStorage(new File(args[1]).getAbsolutePath());
+        storage.init();
+        try {
+            System.out.print(new H22TraceReplay(storage, speed, threads).replay(files));
+        } finally {
+            storage.shutdown();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.dotcms.hazelcast.mapstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Blob;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The stream values are serialized into on their way to h2. Values up to the spill size are
+ * written to a pooled buffer and handed to the driver without being copied out of it, larger
+ * values are streamed straight into a {@link Blob} so they never sit on the heap in full.
+ */
+public class H22ValueStream extends OutputStream {
+
+    private final Pool pool;
+    private final Connection connection;
+    private byte[] buf;
+    private int count;
+    private long size;
+    private Blob blob;
+    private OutputStream spill;
+
+    /**
+     * @param connection the connection to create the Blob on once the value gets bigger than the
+     *        spill size, null to always buffer
+     */
+    public H22ValueStream(Pool pool, Connection connection) {
+        this.pool = pool;
+        this.connection = connection;
+        this.buf = pool.take();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (spill == null && connection != null && count + len > pool.spillBytes) {
+            spill();
+        }
+        if (spill != null) {
+            spill.write(b, off, len);
+        } else {
+            if (count + len > buf.length) {
+                int grownSize = Math.max(count + len, buf.length * 2);
+                if (connection != null) {
+                    // never grow past what the pool will take back
+                    grownSize = Math.min(grownSize, pool.spillBytes);
+                }
+                byte[] grown = new byte[grownSize];
+                System.arraycopy(buf, 0, grown, 0, count);
+                buf = grown;
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+        size += len;
+    }
+
+    private void spill() throws IOException {
+        try {
+            blob = connection.createBlob();
+            spill = blob.setBinaryStream(1);
+            spill.write(buf, 0, count);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (spill != null) {
+            spill.close();
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isSpilled() {
+        return blob != null;
+    }
+
+    /**
+     * The value, once closed, if it was spilled
+     */
+    public Blob blob() {
+        return blob;
+    }
+
+    /**
+     * The value, if it was not spilled, read straight out of the buffer
+     */
+    public InputStream inputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+
+    /**
+     * Gives the buffer back to the pool and frees the Blob, call once the statement using the
+     * value has run
+     */
+    public void release() {
+        if (buf != null) {
+            pool.give(buf);
+            buf = null;
+        }
+        if (blob != null) {
+            try {
+                blob.free();
+            } catch (SQLException e) {
+                // the driver owns it now
+            }
+            blob = null;
+        }
+    }
+
+    /**
+     * Reusable serialization buffers. Buffers grow up to the spill size as they are used and are
+     * kept for the next value, at most maxPooled of them are kept
+     */
+    public static class Pool {
+
+        private static final int INITIAL_SIZE = 8192;
+
+        final int spillBytes;
+        final int maxPooled;
+        private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        public Pool(int spillBytes, int maxPooled) {
+            this.spillBytes = spillBytes;
+            this.maxPooled = maxPooled;
+        }
+
+        byte[] take() {
+            byte[] buf = buffers.poll();
+            if (buf == null) {
+                return new byte[INITIAL_SIZE];
+            }
+            pooled.decrementAndGet();
+            return buf;
+        }
+
+        void give(byte[] buf) {
+            if (buf.length <= spillBytes && pooled.incrementAndGet() <= maxPooled) {
+                buffers.offer(buf);
+            } else if (buf.length <= spillBytes) {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+}
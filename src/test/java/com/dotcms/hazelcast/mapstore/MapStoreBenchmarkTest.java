@@ -0,0 +1,274 @@
+package com.dotcms.hazelcast.mapstore;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+
+
+/**
+ * Benchmarks of the storage, skipped unless run with -Dmapstore.benchmark=true
+ */
+public class MapStoreBenchmarkTest {
+
+    final String GROUPNAME = "VelocityCache";
+    final int numberOfRows = Integer.getInteger("mapstore.benchmark.rows", 20000);
+    final int numberOfThreads = Integer.getInteger("mapstore.benchmark.threads", 40);
+    private static final Logger LOGGER = Logger.getLogger(MapStoreBenchmarkTest.class.getName());
+
+    @Before
+    public void onlyWhenAsked() {
+        Assume.assumeTrue(Boolean.getBoolean("mapstore.benchmark"));
+    }
+
+    // keys shaped like dotCMS velocity cache keys
+    String key(int i) {
+        return "live/" + new java.util.UUID(i, i * 31L) + "/1/"
+                        + "dotcms.org.default/content/page/" + i + ".content.vtl";
+    }
+
+    File folder(String name) throws Exception {
+        File folder = new File("H22MapStoreBenchmark", name);
+        FileUtils.deleteDirectory(folder);
+        return folder.getAbsoluteFile();
+    }
+
+    long millisSince(long start) {
+        return TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    @Test
+    public void compactSchema() throws Exception {
+
+        for (boolean compact : new boolean[] {false, true}) {
+            File folder = folder(compact ? "compact" : "classic");
+            H22MapStoreStorage storage = new H22MapStoreStorage(folder.getPath(), compact);
+            storage.init();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < numberOfRows; i++) {
+                storage.put(GROUPNAME, key(i), "value" + i);
+            }
+            long putMillis = millisSince(start);
+
+            start = System.nanoTime();
+            int keys = storage.getKeys(GROUPNAME).size();
+            long scanMillis = millisSince(start);
+
+            storage.shutdown();
+            long bytes = FileUtils.sizeOfDirectory(folder);
+            LOGGER.info((compact ? "compact" : "classic") + " schema: " + numberOfRows + " rows, "
+                            + bytes + " bytes on disk (" + (bytes / numberOfRows) + " per row), puts "
+                            + putMillis + "ms, key scan " + scanMillis + "ms");
+            assertEquals(numberOfRows, keys);
+        }
+    }
+
+    @Test
+    public void manyThreadsOneKey() throws Exception {
+
+        H22MapStoreStorage storage = new H22MapStoreStorage(folder("oneKey").getPath());
+        storage.init();
+        // a large value, so reading and deserializing it is what the threads wait on
+        List<String> value = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            value.add(key(i));
+        }
+        storage.put(GROUPNAME, key(0), (java.io.Serializable) value);
+
+        final int getsPerThread = 50;
+        ExecutorService threads = Executors.newFixedThreadPool(numberOfThreads);
+        List<Future<Integer>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < numberOfThreads; t++) {
+            results.add(threads.submit(() -> {
+                int found = 0;
+                for (int i = 0; i < getsPerThread; i++) {
+                    if (storage.get(GROUPNAME, key(0)) != null) {
+                        found++;
+                    }
+                }
+                return found;
+            }));
+        }
+        int found = 0;
+        for (Future<Integer> result : results) {
+            found += result.get();
+        }
+        long millis = millisSince(start);
+        threads.shutdown();
+
+        int gets = numberOfThreads * getsPerThread;
+        LOGGER.info(numberOfThreads + " threads, one key: " + gets + " gets in " + millis + "ms ("
+                        + (gets * 1000L / Math.max(1, millis)) + "/s), "
+                        + storage.getCoalescedLoads() + " shared another thread's read");
+        storage.shutdown();
+        assertEquals(gets, found);
+    }
+
+    /**
+     * Read latency while half the threads keep writing, run with mapstore.h22.db.read.poolsize.max
+     * set and unset to compare
+     */
+    @Test
+    public void mixedWorkload() throws Exception {
+
+        H22MapStoreStorage storage = new H22MapStoreStorage(folder("mixed").getPath());
+        storage.init();
+        final int keys = 2000;
+        final char[] value = new char[10000];
+        Arrays.fill(value, 'x');
+        for (int i = 0; i < keys; i++) {
+            storage.put(GROUPNAME, key(i), new String(value));
+        }
+
+        final int opsPerThread = 500;
+        ExecutorService threads = Executors.newFixedThreadPool(numberOfThreads);
+        List<Future<long[]>> readers = new ArrayList<>();
+        List<Future<?>> writers = new ArrayList<>();
+        for (int t = 0; t < numberOfThreads; t++) {
+            if (t % 2 == 0) {
+                writers.add(threads.submit(() -> {
+                    for (int i = 0; i < opsPerThread; i++) {
+                        storage.put(GROUPNAME, key(ThreadLocalRandom.current().nextInt(keys)),
+                                        new String(value) + i);
+                    }
+                }));
+            } else {
+                readers.add(threads.submit(() -> {
+                    long[] nanos = new long[opsPerThread];
+                    for (int i = 0; i < opsPerThread; i++) {
+                        long start = System.nanoTime();
+                        storage.get(GROUPNAME, key(ThreadLocalRandom.current().nextInt(keys)));
+                        nanos[i] = System.nanoTime() - start;
+                    }
+                    return nanos;
+                }));
+            }
+        }
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        long[] latencies = new long[0];
+        for (Future<long[]> reader : readers) {
+            long[] nanos = reader.get();
+            int from = latencies.length;
+            latencies = Arrays.copyOf(latencies, from + nanos.length);
+            System.arraycopy(nanos, 0, latencies, from, nanos.length);
+        }
+        threads.shutdown();
+        storage.shutdown();
+
+        Arrays.sort(latencies);
+        LOGGER.info("mixed workload, read pool "
+                        + HazelH2PropertyBundle.getIntProperty("mapstore.h22.db.read.poolsize.max", 0)
+                        + ": " + latencies.length + " reads, p50 "
+                        + latencies[latencies.length / 2] / 1000 + "us, p99 "
+                        + latencies[latencies.length * 99 / 100] / 1000 + "us");
+    }
+
+    /**
+     * Hazelcast storing every entry again, as after a migration or a write-behind retry, with a
+     * fifth of the values changed since, with and without mapstore.h22.skip.unchanged
+     */
+    @Test
+    public void restoreUnchanged() throws Exception {
+
+        final char[] page = new char[4000];
+        Arrays.fill(page, 'x');
+        for (boolean skip : new boolean[] {false, true}) {
+            System.setProperty("mapstore.h22.skip.unchanged", String.valueOf(skip));
+            H22Config.reload();
+            H22MapStoreStorage storage = new H22MapStoreStorage(
+                            folder(skip ? "skipUnchanged" : "writeAll").getPath());
+            storage.init();
+            try {
+                long start = System.nanoTime();
+                for (int i = 0; i < numberOfRows; i++) {
+                    storage.put(GROUPNAME, key(i), new String(page) + i);
+                }
+                long firstMillis = millisSince(start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < numberOfRows; i++) {
+                    storage.put(GROUPNAME, key(i),
+                                    new String(page) + ((i % 5 == 0) ? "changed" + i : i));
+                }
+                long millis = millisSince(start);
+                LOGGER.info("re-store of " + numberOfRows + " rows, skip unchanged " + skip + ": "
+                                + millis + "ms (" + (numberOfRows * 1000L / Math.max(1, millis))
+                                + "/s), " + storage.getSkippedPuts() + " puts and "
+                                + storage.getSkippedBytes() + " bytes skipped, first store " + firstMillis
+                                + "ms");
+                assertEquals(skip ? numberOfRows * 4 / 5 : 0, storage.getSkippedPuts());
+                assertEquals(new String(page) + "changed5", storage.get(GROUPNAME, key(5)));
+                assertEquals(new String(page) + 6, storage.get(GROUPNAME, key(6)));
+            } finally {
+                storage.shutdown();
+                System.clearProperty("mapstore.h22.skip.unchanged");
+                H22Config.reload();
+            }
+        }
+    }
+
+    /**
+     * Keys sharing a few large values, as pages rendering the same fragment, stored with and
+     * without mapstore.h22.dedup.min.bytes
+     */
+    @Test
+    public void sharedValues() throws Exception {
+
+        final int distinct = 20;
+        final char[] page = new char[8000];
+        Arrays.fill(page, 'x');
+        for (boolean dedup : new boolean[] {false, true}) {
+            System.setProperty("mapstore.h22.dedup.min.bytes", dedup ? "1024" : "0");
+            H22Config.reload();
+            File folder = folder(dedup ? "dedup" : "duplicated");
+            H22MapStoreStorage storage = new H22MapStoreStorage(folder.getPath());
+            storage.init();
+            long putMillis;
+            try {
+                long start = System.nanoTime();
+                for (int i = 0; i < numberOfRows; i++) {
+                    storage.put(GROUPNAME, key(i), new String(page) + (i % distinct));
+                }
+                putMillis = millisSince(start);
+                assertEquals(new String(page) + 7, storage.get(GROUPNAME, key(distinct + 7)));
+
+                start = System.nanoTime();
+                storage.remove(GROUPNAME);
+                long removeMillis = millisSince(start);
+                for (int i = 0; i < numberOfRows; i++) {
+                    storage.put(GROUPNAME, key(i), new String(page) + (i % distinct));
+                }
+                LOGGER.info("shared values, dedup " + dedup + ": " + numberOfRows + " puts in "
+                                + putMillis + "ms (" + (numberOfRows * 1000L / Math.max(1, putMillis))
+                                + "/s), group removed in " + removeMillis + "ms, "
+                                + storage.getDedupedPuts() + " puts and " + storage.getDedupedBytes()
+                                + " bytes deduplicated");
+            } finally {
+                storage.shutdown();
+                System.clearProperty("mapstore.h22.dedup.min.bytes");
+                H22Config.reload();
+            }
+            long bytes = FileUtils.sizeOfDirectory(folder);
+            LOGGER.info("shared values, dedup " + dedup + ": " + bytes + " bytes on disk ("
+                            + (bytes / numberOfRows) + " per row)");
+        }
+    }
+}
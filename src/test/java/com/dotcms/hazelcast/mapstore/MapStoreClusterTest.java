@@ -0,0 +1,282 @@
+package com.dotcms.hazelcast.mapstore;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.MapStoreConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+
+
+/**
+ * Runs the mapstore under embedded hazelcast members in this jvm, each with its own dbs. Drives
+ * concurrent puts, gets and evictions through every member, then checks that no member ever
+ * serves an outdated value while members leave and rejoin. A miss is fine, the dbs are a cache
+ * local to each member, an old value is not.
+ *
+ * Sized by mapstore.cluster.members, mapstore.cluster.entries and mapstore.cluster.threads.
+ */
+public class MapStoreClusterTest {
+
+    static final String WRITE_THROUGH = "writeThrough";
+    static final String WRITE_BEHIND = "writeBehind";
+    final int numberOfMembers = Math.max(2, Integer.getInteger("mapstore.cluster.members", 3));
+    final int numberOfEntries = Integer.getInteger("mapstore.cluster.entries", 2000);
+    final int numberOfThreads = Integer.getInteger("mapstore.cluster.threads", 8);
+    private static final Logger LOGGER = Logger.getLogger(MapStoreClusterTest.class.getName());
+
+    final String clusterName = "h22-cluster-test-" + System.nanoTime();
+    final List<HazelcastInstance> members = new ArrayList<>();
+
+    // key -> version last written, every value read must be it or, once evicted, a miss
+    final Map<String, Integer> written = new HashMap<>();
+
+    @BeforeClass
+    public static void partitionAware() {
+        // stores purge the partitions that migrate to them, which needs the partition index
+        System.setProperty("mapstore.h22.partition.aware", "true");
+        H22Config.reload();
+    }
+
+    @AfterClass
+    public static void restore() {
+        System.clearProperty("mapstore.h22.partition.aware");
+        H22Config.reload();
+    }
+
+    @After
+    public void shutdown() {
+        for (HazelcastInstance member : members) {
+            member.getLifecycleService().terminate();
+        }
+        members.clear();
+    }
+
+    File folder(int member) throws Exception {
+        return new File("H22MapStoreCluster", "member" + member).getAbsoluteFile();
+    }
+
+    HazelcastInstance startMember(int member) throws Exception {
+        Config config = new Config();
+        config.setProperty("hazelcast.logging.type", "jdk");
+        config.setProperty("hazelcast.phone.home.enabled", "false");
+        config.setProperty("hazelcast.partition.count", "71");
+        config.setProperty("hazelcast.wait.seconds.before.join", "0");
+        config.getGroupConfig().setName(clusterName);
+        JoinConfig join = config.getNetworkConfig().getJoin();
+        join.getMulticastConfig().setEnabled(false);
+        join.getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+        config.getNetworkConfig().getInterfaces().setEnabled(true).addInterface("127.0.0.1");
+        for (String map : Arrays.asList(WRITE_THROUGH, WRITE_BEHIND)) {
+            MapStoreConfig store = new MapStoreConfig().setEnabled(true)
+                            .setFactoryClassName(DotH22MapStoreFactory.class.getName())
+                            .setWriteDelaySeconds(WRITE_BEHIND.equals(map) ? 1 : 0);
+            store.setProperty("mapstore.h2.database.folder", folder(member).getPath());
+            config.addMapConfig(new MapConfig(map).setBackupCount(1).setMapStoreConfig(store));
+        }
+        HazelcastInstance instance = Hazelcast.newHazelcastInstance(config);
+        members.add(instance);
+        return instance;
+    }
+
+    String key(int i) {
+        return "key" + i;
+    }
+
+    /**
+     * Each thread owns the keys i % threads == t so it knows the latest version of each, and
+     * goes through a random member for every op
+     */
+    long[][] drive(String mapName, int rounds) throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(numberOfThreads);
+        List<Future<long[][]>> results = new ArrayList<>();
+        List<Map<String, Integer>> versions = new ArrayList<>();
+        for (int t = 0; t < numberOfThreads; t++) {
+            final int thread = t;
+            final Map<String, Integer> mine = new HashMap<>();
+            for (int i = thread; i < numberOfEntries; i += numberOfThreads) {
+                if (written.containsKey(key(i))) {
+                    mine.put(key(i), written.get(key(i)));
+                }
+            }
+            versions.add(mine);
+            results.add(threads.submit(() -> {
+                List<Long> puts = new ArrayList<>();
+                List<Long> gets = new ArrayList<>();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int round = 0; round < rounds; round++) {
+                    for (int i = thread; i < numberOfEntries; i += numberOfThreads) {
+                        IMap<String, Object> map =
+                                        members.get(random.nextInt(members.size())).getMap(mapName);
+                        String key = key(i);
+                        int version = mine.getOrDefault(key, 0) + 1;
+                        long start = System.nanoTime();
+                        map.set(key, value(key, version));
+                        puts.add(System.nanoTime() - start);
+                        mine.put(key, version);
+                        if (random.nextInt(10) == 0) {
+                            map.evict(key);
+                        }
+                        start = System.nanoTime();
+                        Object read = members.get(random.nextInt(members.size())).getMap(mapName)
+                                        .get(key);
+                        gets.add(System.nanoTime() - start);
+                        if (read != null) {
+                            assertEquals(value(key, version), read);
+                        }
+                    }
+                }
+                return new long[][] {toArray(puts), toArray(gets)};
+            }));
+        }
+        List<Long> puts = new ArrayList<>();
+        List<Long> gets = new ArrayList<>();
+        for (Future<long[][]> result : results) {
+            for (long nanos : result.get()[0]) {
+                puts.add(nanos);
+            }
+            for (long nanos : result.get()[1]) {
+                gets.add(nanos);
+            }
+        }
+        threads.shutdown();
+        for (Map<String, Integer> mine : versions) {
+            written.putAll(mine);
+        }
+        return new long[][] {toArray(puts), toArray(gets)};
+    }
+
+    static long[] toArray(List<Long> list) {
+        long[] array = new long[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        Arrays.sort(array);
+        return array;
+    }
+
+    static String value(String key, int version) {
+        return key + "@" + version;
+    }
+
+    void report(String what, long[][] latencies, long millis) {
+        long[] puts = latencies[0];
+        long[] gets = latencies[1];
+        LOGGER.info(what + ", " + members.size() + " members, " + numberOfThreads + " threads: "
+                        + (puts.length + gets.length) + " ops in " + millis + "ms ("
+                        + ((puts.length + gets.length) * 1000L / Math.max(1, millis)) + "/s), put p50 "
+                        + puts[puts.length / 2] / 1000 + "us p99 " + puts[puts.length * 99 / 100] / 1000
+                        + "us, get p50 " + gets[gets.length / 2] / 1000 + "us p99 "
+                        + gets[gets.length * 99 / 100] / 1000 + "us");
+    }
+
+    /**
+     * Evicts everything so every get goes to the stores, and checks each value is the latest
+     * written or a miss. Returns the number of misses
+     */
+    int verifyFromStores(String mapName) {
+        IMap<String, Object> map = members.get(0).getMap(mapName);
+        map.evictAll();
+        int misses = 0;
+        for (Map.Entry<String, Integer> entry : written.entrySet()) {
+            Object read = members.get(Math.floorMod(entry.getKey().hashCode(), members.size()))
+                            .getMap(mapName).get(entry.getKey());
+            if (read == null) {
+                misses++;
+            } else {
+                assertEquals(value(entry.getKey(), entry.getValue()), read);
+            }
+        }
+        return misses;
+    }
+
+    void verifyInMemory(String mapName) {
+        IMap<String, Object> map = members.get(0).getMap(mapName);
+        for (Map.Entry<String, Integer> entry : written.entrySet()) {
+            assertEquals(value(entry.getKey(), entry.getValue()), map.get(entry.getKey()));
+        }
+    }
+
+    void membersLeaveAndRejoin(String mapName) throws Exception {
+        for (int i = 0; i < numberOfMembers; i++) {
+            FileUtils.deleteDirectory(folder(i));
+        }
+        for (int i = 0; i < numberOfMembers; i++) {
+            startMember(i);
+        }
+
+        long start = System.currentTimeMillis();
+        report(mapName, drive(mapName, 2), System.currentTimeMillis() - start);
+        if (WRITE_BEHIND.equals(mapName)) {
+            members.get(0).getMap(mapName).flush();
+        }
+        // nothing migrated since the writes, every value is in its owner's store
+        assertEquals(0, verifyFromStores(mapName));
+
+        // a member leaves, its partitions are served from the backups
+        HazelcastInstance leaving = members.remove(members.size() - 1);
+        leaving.shutdown();
+        start = System.currentTimeMillis();
+        report(mapName + " after a member left", drive(mapName, 1), System.currentTimeMillis() - start);
+        if (WRITE_BEHIND.equals(mapName)) {
+            members.get(0).getMap(mapName).flush();
+        }
+        verifyInMemory(mapName);
+
+        // and comes back on the dbs it left behind, which hold values that are outdated now
+        startMember(numberOfMembers - 1);
+        waitForMigrations();
+        verifyInMemory(mapName);
+        int misses = verifyFromStores(mapName);
+        LOGGER.info(mapName + ": " + misses + " of " + written.size()
+                        + " keys missed from the stores after a member rejoined, none outdated");
+
+        start = System.currentTimeMillis();
+        report(mapName + " after it rejoined", drive(mapName, 1), System.currentTimeMillis() - start);
+        if (WRITE_BEHIND.equals(mapName)) {
+            members.get(0).getMap(mapName).flush();
+        }
+        assertEquals(0, verifyFromStores(mapName));
+    }
+
+    void waitForMigrations() throws InterruptedException {
+        long until = System.currentTimeMillis() + 60000;
+        while (!members.get(0).getPartitionService().isClusterSafe()
+                        && System.currentTimeMillis() < until) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+    }
+
+    @Test
+    public void writeThrough() throws Exception {
+        membersLeaveAndRejoin(WRITE_THROUGH);
+    }
+
+    @Test
+    public void writeBehind() throws Exception {
+        membersLeaveAndRejoin(WRITE_BEHIND);
+    }
+}
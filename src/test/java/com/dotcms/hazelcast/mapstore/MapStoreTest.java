@@ -1,11 +1,36 @@
 package com.dotcms.hazelcast.mapstore;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
 import org.junit.Test;
 
 
@@ -32,7 +57,87 @@ public class MapStoreTest {
     final int numberOfGroups = 100;
     final int maxCharOfObjects = 100;
     private static final Logger LOGGER = Logger.getLogger(MapStoreTest.class.getName());
-    
+
+    // storages a test opened and settings it changed, undone after it
+    final List<H22MapStoreStorage> opened = new ArrayList<>();
+    final List<String> settings = new ArrayList<>();
+
+    @After
+    public void cleanUp() throws Exception {
+       for (H22MapStoreStorage storage : opened) {
+           if (storage.isInitialized()) {
+               storage.shutdown();
+           }
+       }
+       opened.clear();
+       if (!settings.isEmpty()) {
+           settings.forEach(System::clearProperty);
+           settings.clear();
+           H22Config.reload();
+       }
+    }
+
+    /**
+     * A storage on an empty folder, shut down after the test
+     */
+    H22MapStoreStorage newStorage(String folder) throws Exception {
+       FileUtils.deleteDirectory(new File(folder).getAbsoluteFile());
+       return openStorage(folder);
+    }
+
+    /**
+     * A storage on whatever the folder holds, shut down after the test
+     */
+    H22MapStoreStorage openStorage(String folder) throws Exception {
+       H22MapStoreStorage storage = new H22MapStoreStorage(new File(folder).getAbsolutePath());
+       storage.init();
+       opened.add(storage);
+       return storage;
+    }
+
+    /**
+     * Changes a setting for this test only, storages created afterwards use it
+     */
+    void setting(String key, String value) {
+       System.setProperty(key, value);
+       settings.add(key);
+       H22Config.reload();
+    }
+
+    int dbs() {
+       return HazelH2PropertyBundle.getIntProperty("mapstore.h22.number.of.dbs", 2);
+    }
+
+    int tables() {
+       return HazelH2PropertyBundle.getIntProperty("mapstore.h22.number.of.tables.per.db", 9);
+    }
+
+    /**
+     * The sum over all dbs of a single number query
+     */
+    long sum(H22MapStoreStorage storage, String sql) throws Exception {
+       long sum = 0;
+       for (int db = 0; db < dbs(); db++) {
+           try (Connection c = storage.createConnection(true, db).get();
+                           ResultSet rs = c.createStatement().executeQuery(sql)) {
+               rs.next();
+               sum += rs.getLong(1);
+           }
+       }
+       return sum;
+    }
+
+    /**
+     * The rows of all tables of all dbs
+     */
+    long rows(H22MapStoreStorage storage) throws Exception {
+       StringBuilder sql = new StringBuilder("select ");
+       for (int table = 0; table < tables(); table++) {
+           sql.append(table == 0 ? "" : " + ").append("(select count(*) from ")
+                           .append(H22MapStoreStorage.TABLE_PREFIX).append(table).append(')');
+       }
+       return sum(storage, sql.toString());
+    }
 
     
     @Test 
@@ -58,4 +163,1050 @@ public class MapStoreTest {
        assertTrue(keys.contains(KEYNAME));
         
     }
+
+    @Test
+    public void testHotKeys() {
+
+       H22HotKeys hotKeys = new H22HotKeys(new File("H22MapStore", "hotkeysTest"), 100, 2);
+       for (int i = 0; i < 3; i++) {
+           hotKeys.touch(GROUPNAMES[0], LONG_KEYNAME);
+       }
+       hotKeys.touch(GROUPNAMES[0], KEYNAME);
+       hotKeys.touch(GROUPNAMES[0], KEYNAME);
+       hotKeys.touch(GROUPNAMES[0], CANT_CACHE_KEYNAME);
+       hotKeys.snapshot();
+
+       List<String> keys = hotKeys.read(GROUPNAMES[0], 60000);
+       assertEquals(2, keys.size());
+       assertEquals(LONG_KEYNAME, keys.get(0));
+       assertEquals(KEYNAME, keys.get(1));
+       assertTrue(hotKeys.read(GROUPNAMES[1], 60000).isEmpty());
+    }
+
+    @Test
+    public void testLargeValue() {
+
+       MapStore<String, Object> store = new DotH22MapStoreFactory().newMapStore("testMap", null);
+
+       // bigger than mapstore.h22.stream.spill.bytes, so it goes through a blob
+       byte[] large = new byte[3 * 1024 * 1024];
+       for (int i = 0; i < large.length; i++) {
+           large[i] = (byte) i;
+       }
+       store.store(KEYNAME + "large", large);
+       assertArrayEquals(large, (byte[]) store.load(KEYNAME + "large"));
+    }
+
+    @Test
+    public void testLifecycle() throws Exception {
+
+       Properties properties = new Properties();
+       properties.setProperty("mapstore.h2.database.folder", "H22MapStoreLifecycle");
+       H22RegionMapStore first = new H22RegionMapStore("testMap");
+       H22RegionMapStore second = new H22RegionMapStore("testMap2");
+       first.init(null, properties, "testMap");
+       second.init(null, properties, "testMap2");
+
+       H22MapStoreStorage storage = first.storage();
+       assertTrue(storage == second.storage());
+
+       first.store(KEYNAME, CONTENT);
+       first.destroy();
+       assertTrue(storage.isInitialized());
+       assertTrue(CONTENT.equals(second.storage().get("testMap", KEYNAME)));
+
+       second.destroy();
+       assertFalse(storage.isInitialized());
+
+       // a late write-behind flush must not open the dbs again
+       try {
+           second.store(KEYNAME, CONTENT);
+           fail("stored after destroy");
+       } catch (IllegalStateException e) {
+           assertFalse(storage.isInitialized());
+       }
+    }
+
+    @Test
+    public void testExportImport() throws Exception {
+
+       File exportFolder = new File("H22MapStoreExport");
+       H22MapStoreStorage source = H22MapStoreStorage.acquire(new File("H22MapStoreExportSource").getAbsolutePath());
+       byte[] large = new byte[1024 * 1024];
+       for (int i = 0; i < large.length; i++) {
+           large[i] = (byte) i;
+       }
+       for (String group : GROUPNAMES) {
+           source.put(group, KEYNAME, CONTENT);
+           source.put(group, LONG_KEYNAME, large);
+       }
+       assertEquals(GROUPNAMES.length * 2, source.export(exportFolder));
+       source.release();
+
+       H22MapStoreStorage target = H22MapStoreStorage.acquire(new File("H22MapStoreExportTarget").getAbsolutePath());
+       target.removeAll();
+       assertEquals(GROUPNAMES.length * 2, target.importFrom(exportFolder));
+       for (String group : GROUPNAMES) {
+           assertEquals(CONTENT, target.get(group, KEYNAME));
+           assertArrayEquals(large, (byte[]) target.get(group, LONG_KEYNAME));
+       }
+       target.release();
+    }
+
+    @Test
+    public void testImportDamaged() throws Exception {
+
+       // batches smaller than the checksummed blocks must not commit rows ahead of them
+       setting("mapstore.h22.export.batch.size", "7");
+       H22MapStoreStorage target = newStorage("H22MapStoreImportTarget");
+       File folder = new File("H22MapStoreImportDamaged").getAbsoluteFile();
+       FileUtils.deleteDirectory(folder);
+       folder.mkdirs();
+
+       // cut off after 25 rows, checksums vouch for the first 20
+       File file = new File(folder, "db0" + H22ExportFormat.SUFFIX);
+       try (H22ExportFormat.Writer writer = new H22ExportFormat.Writer(file, target.schemaVersion(), 10)) {
+           for (int i = 0; i < 25; i++) {
+               ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+               try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                   out.writeObject(CONTENT + i);
+               }
+               writer.write(GROUPNAMES[0], KEYNAME + i, 0, -1, bytes.size(),
+                               new ByteArrayInputStream(bytes.toByteArray()));
+           }
+       }
+       try {
+           target.importFrom(folder);
+           fail("imported a damaged file");
+       } catch (IOException e) {
+           assertEquals(20, target.getKeys(GROUPNAMES[0]).size());
+           assertEquals(CONTENT + 19, target.get(GROUPNAMES[0], KEYNAME + 19));
+           assertEquals(null, target.get(GROUPNAMES[0], KEYNAME + 20));
+       }
+
+       // an export of another layout is refused before any row is read
+       target.removeAll();
+       try (H22ExportFormat.Writer writer = new H22ExportFormat.Writer(file,
+                       target.schemaVersion() + ":partitioned", 10)) {
+           writer.finish();
+       }
+       try {
+           target.importFrom(folder);
+           fail("imported another layout");
+       } catch (IOException e) {
+           assertTrue(e.getCause().getMessage().contains("does not fit"));
+       }
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+
+       H22CircuitBreaker breaker = new H22CircuitBreaker(60000, 4, 0.5, 1000, 50);
+       breaker.onSuccess(0);
+       breaker.onSuccess(0);
+       breaker.onFailure();
+       assertTrue(breaker.isClosed());
+       breaker.onFailure();
+       assertFalse(breaker.allowRequest());
+
+       // one probe once it has been open long enough, a failed probe opens it again
+       Thread.sleep(60);
+       assertTrue(breaker.allowRequest());
+       assertFalse(breaker.allowRequest());
+       breaker.onFailure();
+       assertEquals(1, breaker.failedProbes());
+       assertFalse(breaker.allowRequest());
+
+       // a call let through before it opened, finishing while it is half open, is not the probe
+       Thread.sleep(60);
+       assertTrue(breaker.allowRequest());
+       Thread late = new Thread(() -> breaker.onSuccess(0));
+       late.start();
+       late.join();
+       assertFalse(breaker.isClosed());
+       breaker.onSuccess(0);
+       assertTrue(breaker.isClosed());
+       assertTrue(breaker.allowRequest());
+       assertEquals(0, breaker.failedProbes());
+       assertEquals(1, breaker.trips());
+       assertEquals(3, breaker.rejected());
+    }
+
+    @Test
+    public void testAccessTrace() throws Exception {
+
+       File folder = new File("H22MapStoreTrace").getAbsoluteFile();
+       FileUtils.deleteDirectory(folder);
+       H22AccessTrace trace = new H22AccessTrace(new File(folder, "trace"), 1024, 256);
+       for (int i = 0; i < 100; i++) {
+           long start = System.nanoTime();
+           trace.record(H22AccessTrace.Op.STORE, GROUPNAMES[i % 3], KEYNAME + i, 100, start);
+           trace.record(H22AccessTrace.Op.LOAD, GROUPNAMES[i % 3], KEYNAME + i, 100, start);
+       }
+       trace.record(H22AccessTrace.Op.DELETE, GROUPNAMES[0], KEYNAME + 0, -1, System.nanoTime());
+       trace.close();
+       assertEquals(0, trace.dropped());
+
+       H22MapStoreStorage storage = newStorage("H22MapStoreTrace/db");
+       H22TraceReplay.Report report = new H22TraceReplay(storage, 0, 4)
+                       .replay(Arrays.asList(new File(folder, "trace").listFiles()));
+       assertEquals(201, report.ops());
+       assertEquals(99, storage.getKeys(GROUPNAMES[0]).size() + storage.getKeys(GROUPNAMES[1]).size()
+                       + storage.getKeys(GROUPNAMES[2]).size());
+    }
+
+    @Test
+    public void testAccessTraceMerge() throws Exception {
+
+       // two members writing the same key, replayed in the order the ops happened rather than
+       // one file after the other
+       File folder = new File("H22MapStoreTraceMerge").getAbsoluteFile();
+       FileUtils.deleteDirectory(folder);
+       H22AccessTrace first = new H22AccessTrace(new File(folder, "trace"), 1024, 256);
+       H22AccessTrace second = new H22AccessTrace(new File(folder, "trace"), 1024, 256);
+       first.record(H22AccessTrace.Op.STORE, GROUPNAMES[0], KEYNAME, 100, System.nanoTime());
+       Thread.sleep(20);
+       second.record(H22AccessTrace.Op.STORE, GROUPNAMES[0], KEYNAME, 100, System.nanoTime());
+       Thread.sleep(20);
+       first.record(H22AccessTrace.Op.DELETE, GROUPNAMES[0], KEYNAME, -1, System.nanoTime());
+       first.close();
+       Thread.sleep(5);
+       second.close();
+
+       H22MapStoreStorage storage = newStorage("H22MapStoreTraceMerge/db");
+       new H22TraceReplay(storage, 0, 4).replay(Arrays.asList(new File(folder, "trace").listFiles()));
+       assertEquals(null, storage.get(GROUPNAMES[0],
+                       "key-" + Long.toHexString(H22AccessTrace.hash(KEYNAME))));
+    }
+
+    @Test
+    public void testAccessTraceConcurrent() throws Exception {
+
+       // a ring far too small for the writers, records are dropped but none is written torn
+       File folder = new File("H22MapStoreTraceConcurrent").getAbsoluteFile();
+       FileUtils.deleteDirectory(folder);
+       H22AccessTrace trace = new H22AccessTrace(folder, 64, 256);
+       List<Thread> writers = new ArrayList<>();
+       for (int t = 0; t < 4; t++) {
+           Thread writer = new Thread(() -> {
+               for (int i = 0; i < 20000; i++) {
+                   trace.record(H22AccessTrace.Op.STORE, GROUPNAMES[i % 3], KEYNAME + i, i, System.nanoTime());
+               }
+           });
+           writers.add(writer);
+           writer.start();
+       }
+       for (Thread writer : writers) {
+           while (writer.isAlive()) {
+               trace.flush();
+           }
+       }
+       trace.close();
+
+       long read = 0;
+       for (File file : folder.listFiles()) {
+           try (H22AccessTrace.Reader reader = new H22AccessTrace.Reader(file)) {
+               while (reader.next()) {
+                   assertEquals(H22AccessTrace.hash(KEYNAME + reader.size), reader.keyHash);
+                   assertEquals(GROUPNAMES[(int) reader.size % 3], reader.region);
+                   read++;
+               }
+           }
+       }
+       assertEquals(80000, read + trace.dropped());
+    }
+
+    @Test
+    public void testAccessTraceLapped() throws Exception {
+
+       // a writer that laps one still busy with its slot gives its record up, the flush skips it
+       // rather than waiting for the slot to come round again
+       File folder = new File("H22MapStoreTraceLapped").getAbsoluteFile();
+       FileUtils.deleteDirectory(folder);
+       H22AccessTrace trace = new H22AccessTrace(folder, 4, 256);
+       CountDownLatch claimed = new CountDownLatch(1);
+       CountDownLatch lapped = new CountDownLatch(1);
+       trace.afterClaim = () -> {
+           trace.afterClaim = null;
+           claimed.countDown();
+           try {
+               lapped.await();
+           } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+           }
+       };
+       Thread busy = new Thread(() -> trace.record(H22AccessTrace.Op.STORE, GROUPNAMES[0],
+                       KEYNAME + 0, 0, System.nanoTime()));
+       busy.start();
+       claimed.await();
+       for (int i = 1; i < 5; i++) {
+           trace.record(H22AccessTrace.Op.STORE, GROUPNAMES[0], KEYNAME + i, i, System.nanoTime());
+       }
+       lapped.countDown();
+       busy.join();
+       // the first record was lapped, the one that lapped it given up
+       trace.flush();
+       assertEquals(2, trace.dropped());
+       for (int i = 5; i < 7; i++) {
+           trace.record(H22AccessTrace.Op.STORE, GROUPNAMES[0], KEYNAME + i, i, System.nanoTime());
+       }
+       trace.close();
+       assertEquals(2, trace.dropped());
+
+       List<Long> sizes = new ArrayList<>();
+       try (H22AccessTrace.Reader reader = new H22AccessTrace.Reader(folder.listFiles()[0])) {
+           while (reader.next()) {
+               sizes.add(reader.size);
+           }
+       }
+       assertEquals(Arrays.asList(1L, 2L, 3L, 5L, 6L), sizes);
+    }
+
+    @Test
+    public void testCompactSchema() throws Exception {
+
+       setting("mapstore.h22.compact.schema", "true");
+       H22MapStoreStorage storage = newStorage("H22MapStoreCompactSchema");
+       String[] groups = { GROUPNAMES[0], GROUPNAMES[1], LONG_GROUPNAME };
+       Set<String> keys = new HashSet<>(Arrays.asList(LONG_KEYNAME));
+       for (int i = 0; i < 20; i++) {
+           keys.add(KEYNAME + i);
+       }
+       for (String group : groups) {
+           for (String key : keys) {
+               storage.put(group, key, group + key);
+           }
+       }
+       // every group is stored once in each db's dictionary
+       assertEquals(groups.length * dbs(), sum(storage, "select count(*) from cache_groups"));
+       assertEquals(new HashSet<>(Arrays.asList(groups)), storage.getGroups());
+       for (String group : groups) {
+           assertEquals(keys, storage.getKeys(group));
+           for (String key : keys) {
+               assertEquals(group + key, storage.get(group, key));
+           }
+       }
+
+       // groups and keys go with their rows, the others stay
+       storage.remove(GROUPNAMES[1]);
+       storage.remove(LONG_GROUPNAME, LONG_KEYNAME);
+       assertTrue(storage.getKeys(GROUPNAMES[1]).isEmpty());
+       assertEquals(null, storage.get(GROUPNAMES[1], KEYNAME + 0));
+       assertEquals(null, storage.get(LONG_GROUPNAME, LONG_KEYNAME));
+       assertEquals(keys.size() - 1, storage.getKeys(LONG_GROUPNAME).size());
+       assertEquals(keys, storage.getKeys(GROUPNAMES[0]));
+       assertEquals(GROUPNAMES[0] + LONG_KEYNAME, storage.get(GROUPNAMES[0], LONG_KEYNAME));
+
+       // exported and imported through the dictionary of the db they land in
+       File exportFolder = new File("H22MapStoreCompactSchemaExport").getAbsoluteFile();
+       FileUtils.deleteDirectory(exportFolder);
+       assertEquals(keys.size() * 2 - 1, storage.export(exportFolder));
+       storage.removeAll();
+       assertTrue(storage.getKeys(GROUPNAMES[0]).isEmpty());
+       assertEquals(keys.size() * 2 - 1, storage.importFrom(exportFolder));
+       assertEquals(keys, storage.getKeys(GROUPNAMES[0]));
+       assertEquals(GROUPNAMES[0] + LONG_KEYNAME, storage.get(GROUPNAMES[0], LONG_KEYNAME));
+       assertEquals(LONG_GROUPNAME + KEYNAME + 3, storage.get(LONG_GROUPNAME, KEYNAME + 3));
+       storage.shutdown();
+
+       // and read back after a restart
+       storage = openStorage("H22MapStoreCompactSchema");
+       assertEquals(keys, storage.getKeys(GROUPNAMES[0]));
+       assertEquals(GROUPNAMES[0] + LONG_KEYNAME, storage.get(GROUPNAMES[0], LONG_KEYNAME));
+       assertEquals(null, storage.get(GROUPNAMES[1], KEYNAME + 0));
+    }
+
+    @Test
+    public void testBloomFilter() throws Exception {
+
+       setting("mapstore.h22.bloom.expected.insertions", "10000");
+       H22MapStoreStorage storage = newStorage("H22MapStoreBloom");
+       for (int i = 0; i < 100; i++) {
+           storage.put(GROUPNAMES[0], KEYNAME + i, CONTENT + i);
+       }
+       // ids never stored are answered without asking h2, stored ones are always found
+       for (int i = 0; i < 100; i++) {
+           assertEquals(null, storage.get(GROUPNAMES[1], KEYNAME + i));
+       }
+       assertTrue(storage.getFilteredMisses() > 90);
+       for (int i = 0; i < 100; i++) {
+           assertEquals(CONTENT + i, storage.get(GROUPNAMES[0], KEYNAME + i));
+       }
+
+       // ids put after a rebuild loaded the ids, before it replaced the filter, are in the new one
+       int[] loads = {0};
+       storage.afterFilterLoad = () -> {
+           for (int i = 0; i < 100; i++) {
+               storage.put(GROUPNAMES[1], KEYNAME + loads[0] + "-" + i, CONTENT + i);
+           }
+           loads[0]++;
+       };
+       storage.rebuildFilters();
+       storage.afterFilterLoad = null;
+       assertEquals(dbs(), loads[0]);
+       for (int load = 0; load < dbs(); load++) {
+           for (int i = 0; i < 100; i++) {
+               assertEquals(CONTENT + i, storage.get(GROUPNAMES[1], KEYNAME + load + "-" + i));
+           }
+       }
+
+       // emptied along with the dbs, and filled again by puts and imports
+       File exportFolder = new File("H22MapStoreBloomExport").getAbsoluteFile();
+       FileUtils.deleteDirectory(exportFolder);
+       storage.export(exportFolder);
+       storage.removeAll();
+       long filtered = storage.getFilteredMisses();
+       for (int i = 0; i < 100; i++) {
+           assertEquals(null, storage.get(GROUPNAMES[0], KEYNAME + i));
+       }
+       assertTrue(storage.getFilteredMisses() - filtered > 90);
+       storage.put(GROUPNAMES[2], KEYNAME, CONTENT);
+       assertEquals(CONTENT, storage.get(GROUPNAMES[2], KEYNAME));
+       assertEquals(100 + dbs() * 100, storage.importFrom(exportFolder));
+       for (int i = 0; i < 100; i++) {
+           assertEquals(CONTENT + i, storage.get(GROUPNAMES[0], KEYNAME + i));
+       }
+
+       // rebuilt from the rows of recovered dbs
+       storage.shutdown();
+       H22MapStoreStorage recovered = openStorage("H22MapStoreBloom");
+       assertTrue(recovered.isRecovered());
+       for (int i = 0; i < 100; i++) {
+           assertEquals(null, recovered.get(GROUPNAMES[2], KEYNAME + i));
+       }
+       assertTrue(recovered.getFilteredMisses() > 90);
+       for (int i = 0; i < 100; i++) {
+           assertEquals(CONTENT + i, recovered.get(GROUPNAMES[0], KEYNAME + i));
+       }
+       for (int load = 0; load < dbs(); load++) {
+           for (int i = 0; i < 100; i++) {
+               assertEquals(CONTENT + i, recovered.get(GROUPNAMES[1], KEYNAME + load + "-" + i));
+           }
+       }
+       assertEquals(CONTENT, recovered.get(GROUPNAMES[2], KEYNAME));
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+
+       setting("mapstore.h22.ttl.seconds." + GROUPNAMES[0], "1");
+       H22MapStoreStorage storage = newStorage("H22MapStoreTtl");
+       storage.put(GROUPNAMES[0], KEYNAME, CONTENT);
+       storage.put(GROUPNAMES[1], KEYNAME, CONTENT);
+       assertEquals(CONTENT, storage.get(GROUPNAMES[0], KEYNAME));
+
+       // expired rows miss right away, the reaper deletes them later
+       Thread.sleep(1100);
+       assertEquals(null, storage.get(GROUPNAMES[0], KEYNAME));
+       assertEquals(CONTENT, storage.get(GROUPNAMES[1], KEYNAME));
+       assertEquals(2, rows(storage));
+       storage.reapExpired();
+       assertEquals(1, rows(storage));
+       assertEquals(CONTENT, storage.get(GROUPNAMES[1], KEYNAME));
+    }
+
+    @Test
+    public void testRowQuota() throws Exception {
+
+       H22MapStoreStorage storage = newStorage("H22MapStoreRowQuota");
+       for (int i = 0; i < 400; i++) {
+           storage.put(GROUPNAMES[0], KEYNAME + i, CONTENT + i);
+       }
+       storage.evictOverQuota();
+       assertEquals(400, rows(storage));
+
+       // set on the running store
+       setting("mapstore.h22.quota.max.rows.per.db", "100");
+       // read after every put, so these are the most recently used
+       Thread.sleep(5);
+       for (int i = 0; i < 10; i++) {
+           assertEquals(CONTENT + i, storage.get(GROUPNAMES[0], KEYNAME + i));
+       }
+       storage.flushAccessTimes();
+
+       storage.evictOverQuota();
+       assertEquals(dbs() * 90, rows(storage));
+       for (int i = 0; i < 10; i++) {
+           assertEquals(CONTENT + i, storage.get(GROUPNAMES[0], KEYNAME + i));
+       }
+       storage.evictOverQuota();
+       assertEquals(dbs() * 90, rows(storage));
+    }
+
+    @Test
+    public void testMegabyteQuota() throws Exception {
+
+       setting("mapstore.h22.quota.max.megabytes.per.db", "1");
+       H22MapStoreStorage storage = newStorage("H22MapStoreMegabyteQuota");
+       Random random = new Random(1);
+       for (int i = 0; i < 2000; i++) {
+           byte[] value = new byte[4000];
+           random.nextBytes(value);
+           storage.put(GROUPNAMES[0], KEYNAME + i, value);
+       }
+
+       // evicted down to the rows whose bytes fit 90% of the budget, but just used, so the
+       // compaction is put off
+       storage.evictOverQuota();
+       awaitCompactor(storage);
+       long rows = rows(storage);
+       assertTrue(rows > dbs() * 150);
+       assertTrue(rows < dbs() * 240);
+       assertEquals(0, storage.getCompactions());
+       assertEquals(dbs(), storage.getDeferredCompactions());
+
+       // and run by the next check once the dbs are quiet
+       setting("mapstore.h22.compact.quiet.milliseconds", "0");
+       storage.evictOverQuota();
+       awaitCompactor(storage);
+       assertEquals(rows, rows(storage));
+       assertEquals(dbs(), storage.getCompactions());
+       // what is left fits even if h2 kept the space of the deleted rows, so the next check
+       // neither evicts nor compacts again
+       storage.evictOverQuota();
+       awaitCompactor(storage);
+       assertEquals(rows, rows(storage));
+       assertEquals(dbs(), storage.getCompactions());
+       assertEquals(rows, storage.getKeys(GROUPNAMES[0]).size());
+    }
+
+    @Test
+    public void testMegabyteQuotaPuts() throws Exception {
+
+       // puts made while an over quota db compacts wait for it, so not even a db that can not
+       // remember a single missed write is rebuilt
+       setting("mapstore.h22.quota.max.megabytes.per.db", "1");
+       setting("mapstore.h22.compact.quiet.milliseconds", "0");
+       setting("mapstore.h22.breaker.stale.ids.max", "0");
+       H22MapStoreStorage storage = newStorage("H22MapStoreMegabyteQuotaPuts");
+       Random random = new Random(1);
+       for (int i = 0; i < 2000; i++) {
+           byte[] value = new byte[4000];
+           random.nextBytes(value);
+           storage.put(GROUPNAMES[0], KEYNAME + i, value);
+       }
+       storage.evictOverQuota();
+       int puts = 0;
+       long until = System.currentTimeMillis() + 30000;
+       while (storage.getCompactions() < dbs() && System.currentTimeMillis() < until) {
+           storage.put(GROUPNAMES[1], KEYNAME + puts, CONTENT + puts);
+           puts++;
+       }
+       awaitCompactor(storage);
+       assertEquals(dbs(), storage.getCompactions());
+       long rows = rows(storage);
+       storage.purgeStaleIds();
+       assertEquals(rows, rows(storage));
+       assertTrue(rows > dbs() * 150 + puts);
+       for (int i = 0; i < puts; i++) {
+           assertEquals(CONTENT + i, storage.get(GROUPNAMES[1], KEYNAME + i));
+       }
+    }
+
+    /**
+     * Waits for the compactions handed to the compaction thread so far
+     */
+    private void awaitCompactor(H22MapStoreStorage storage) throws Exception {
+       storage.compactor.submit(() -> {}).get();
+    }
+
+    @Test
+    public void testPartitions() throws Exception {
+
+       setting("mapstore.h22.partition.aware", "true");
+       H22MapStoreStorage storage = newStorage("H22MapStorePartitions");
+       assertTrue(storage.isPartitionAware());
+       for (int i = 0; i < 20; i++) {
+           storage.put(GROUPNAMES[0], KEYNAME + i, CONTENT + i, i % 4);
+       }
+       storage.put(GROUPNAMES[1], KEYNAME, CONTENT, 1);
+
+       assertEquals(new HashSet<>(Arrays.asList(KEYNAME + 1, KEYNAME + 2, KEYNAME + 5,
+                       KEYNAME + 6, KEYNAME + 9, KEYNAME + 10, KEYNAME + 13, KEYNAME + 14,
+                       KEYNAME + 17, KEYNAME + 18)),
+                       storage.getKeys(GROUPNAMES[0], Arrays.asList(1, 2)));
+       assertEquals(Collections.singleton(KEYNAME),
+                       storage.getKeys(GROUPNAMES[1], Arrays.asList(1, 2)));
+
+       // only the rows of the group in the given partitions go
+       assertEquals(5, storage.remove(GROUPNAMES[0], Collections.singleton(1)));
+       assertTrue(storage.getKeys(GROUPNAMES[0], Collections.singleton(1)).isEmpty());
+       assertEquals(15, storage.getKeys(GROUPNAMES[0]).size());
+       assertEquals(null, storage.get(GROUPNAMES[0], KEYNAME + 1));
+       assertEquals(CONTENT + 2, storage.get(GROUPNAMES[0], KEYNAME + 2));
+       assertEquals(CONTENT, storage.get(GROUPNAMES[1], KEYNAME));
+       assertEquals(0, storage.remove(GROUPNAMES[0], Collections.<Integer>emptySet()));
+    }
+
+    @Test
+    public void testPartitionPurge() throws Exception {
+
+       setting("mapstore.h22.partition.aware", "true");
+       H22MapStoreStorage storage = newStorage("H22MapStorePartitionPurge");
+       for (int i = 0; i < 20; i++) {
+           storage.put(GROUPNAMES[0], KEYNAME + i, CONTENT + i, i % 4);
+       }
+       // written by this member once the partition migrated to it, kept by the purge even
+       // if the value did not change and the put was skipped
+       Thread.sleep(5);
+       long migrated = System.currentTimeMillis();
+       Thread.sleep(5);
+       storage.put(GROUPNAMES[0], KEYNAME + 2, CONTENT + 2, 2);
+       assertEquals(1, storage.getSkippedPuts());
+       assertEquals(4, storage.remove(GROUPNAMES[0], Collections.singleton(2), migrated));
+       assertEquals(Collections.singleton(KEYNAME + 2),
+                       storage.getKeys(GROUPNAMES[0], Collections.singleton(2)));
+       assertEquals(CONTENT + 2, storage.get(GROUPNAMES[0], KEYNAME + 2));
+
+       // failing dbs get the purge once they are back, and read the group as misses till then
+       for (int db = 0; db < dbs(); db++) {
+           storage.breaker(db).configure(60000, 1, 0, 1000, 60000);
+           storage.breaker(db).onFailure();
+       }
+       assertEquals(0, storage.remove(GROUPNAMES[0], Collections.singleton(1)));
+       for (int db = 0; db < dbs(); db++) {
+           storage.breaker(db).reset();
+       }
+       assertEquals(null, storage.get(GROUPNAMES[0], KEYNAME + 3));
+       assertEquals(16, rows(storage));
+       assertEquals(5, storage.purgePartitions());
+       assertEquals(CONTENT + 3, storage.get(GROUPNAMES[0], KEYNAME + 3));
+       assertEquals(null, storage.get(GROUPNAMES[0], KEYNAME + 1));
+       assertEquals(0, storage.purgePartitions());
+    }
+
+    @Test
+    public void testCoalescedTimeout() throws Exception {
+
+       setting("mapstore.h22.db.query.timeout.milliseconds", "200");
+       H22MapStoreStorage storage = newStorage("H22MapStoreCoalesced");
+       storage.put(GROUPNAMES[0], KEYNAME, CONTENT);
+
+       // a load of the same key that never finishes, as one stuck on a stalled db
+       CompletableFuture<Object> stuck = new CompletableFuture<>();
+       storage.loading.put(new Fqn(GROUPNAMES[0], KEYNAME).id, stuck);
+       long start = System.currentTimeMillis();
+       assertEquals(null, storage.get(GROUPNAMES[0], KEYNAME));
+       assertTrue(System.currentTimeMillis() - start < 2000);
+       assertEquals(1, storage.getCoalescedTimeouts());
+
+       storage.loading.clear();
+       assertEquals(CONTENT, storage.get(GROUPNAMES[0], KEYNAME));
+    }
+
+    @Test
+    public void testQueryTimeout() throws Exception {
+
+       setting("mapstore.h22.db.query.timeout.milliseconds", "200");
+       H22MapStoreStorage storage = newStorage("H22MapStoreTimeout");
+       assertEquals(200, queryTimeout(storage.createConnection(true, 0).get()));
+       // scans and bulk writes run as long as they need, and the timeout is back once returned
+       Connection bulk = storage.createBulkConnection(true, 0).get();
+       assertEquals(0, queryTimeout(bulk));
+       bulk.close();
+       assertEquals(200, queryTimeout(storage.createConnection(true, 0).get()));
+       assertEquals(0, queryTimeout(storage.createBulkReadConnection(0).get()));
+    }
+
+    private int queryTimeout(Connection c) throws Exception {
+       try (Connection conn = c; ResultSet rs = conn.createStatement().executeQuery(
+                       "select value from information_schema.settings where name = 'QUERY_TIMEOUT'")) {
+           return rs.next() ? Integer.parseInt(rs.getString(1)) : 0;
+       }
+    }
+
+    @Test
+    public void testReadPool() throws Exception {
+
+       setting("mapstore.h22.db.read.poolsize.max", "4");
+       H22MapStoreStorage storage = newStorage("H22MapStoreReadPool");
+       assertReadsSeeWrites(storage, CONTENT);
+
+       // rebuilt along with the write pool when a db is compacted or replaced
+       List<H22HikariPool> before = new ArrayList<>();
+       for (int db = 0; db < dbs(); db++) {
+           before.add(storage.pool(db));
+           storage.compact(db, true);
+           assertTrue(before.get(db).readDatasource.isClosed());
+           assertTrue(storage.pool(db) != before.get(db));
+       }
+       assertReadsSeeWrites(storage, CONTENT + 2);
+       for (int db = 0; db < dbs(); db++) {
+           before.set(db, storage.pool(db));
+           storage.dispose(db, true);
+           assertTrue(before.get(db).readDatasource.isClosed());
+           // the first call after builds the db again
+           assertFalse(storage.createReadConnection(db).isPresent());
+       }
+       assertReadsSeeWrites(storage, CONTENT + 3);
+       for (int db = 0; db < dbs(); db++) {
+           assertTrue(storage.pool(db) != before.get(db));
+       }
+    }
+
+    /**
+     * Rows put through the write pools are seen right away by read connections taken before
+     */
+    private void assertReadsSeeWrites(H22MapStoreStorage storage, String content) throws Exception {
+       List<Connection> reads = new ArrayList<>();
+       try {
+           for (int db = 0; db < dbs(); db++) {
+               reads.add(storage.createReadConnection(db).get());
+               assertEquals(1, storage.pool(db).readDatasource.getHikariPoolMXBean()
+                               .getActiveConnections());
+           }
+           for (int i = 0; i < 20; i++) {
+               storage.put(GROUPNAMES[0], KEYNAME + i, content + i);
+               assertEquals(1, stored(reads, KEYNAME + i));
+               assertEquals(content + i, storage.get(GROUPNAMES[0], KEYNAME + i));
+           }
+           storage.remove(GROUPNAMES[0], KEYNAME + 0);
+           assertEquals(0, stored(reads, KEYNAME + 0));
+           assertEquals(null, storage.get(GROUPNAMES[0], KEYNAME + 0));
+       } finally {
+           for (Connection c : reads) {
+               c.close();
+           }
+       }
+    }
+
+    /**
+     * Rows of the key seen through the given connections
+     */
+    private long stored(List<Connection> connections, String key) throws Exception {
+       long rows = 0;
+       for (Connection c : connections) {
+           for (int table = 0; table < tables(); table++) {
+               try (PreparedStatement stmt = c.prepareStatement("select count(*) from "
+                               + H22MapStoreStorage.TABLE_PREFIX + table + " where cache_key = ?")) {
+                   stmt.setString(1, key);
+                   try (ResultSet rs = stmt.executeQuery()) {
+                       rs.next();
+                       rows += rs.getLong(1);
+                   }
+               }
+           }
+       }
+       return rows;
+    }
+
+    @Test
+    public void testSkipUnchanged() throws Exception {
+
+       H22MapStoreStorage storage = newStorage("H22MapStoreSkip");
+       storage.put(GROUPNAMES[0], KEYNAME, CONTENT);
+       storage.put(GROUPNAMES[0], KEYNAME, CONTENT);
+       assertEquals(1, storage.getSkippedPuts());
+       storage.put(GROUPNAMES[0], KEYNAME, CONTENT + 2);
+       assertEquals(1, storage.getSkippedPuts());
+       assertEquals(CONTENT + 2, storage.get(GROUPNAMES[0], KEYNAME));
+
+       // a removed row is written again
+       storage.remove(GROUPNAMES[0], KEYNAME);
+       storage.put(GROUPNAMES[0], KEYNAME, CONTENT + 2);
+       assertEquals(1, storage.getSkippedPuts());
+       assertEquals(CONTENT + 2, storage.get(GROUPNAMES[0], KEYNAME));
+       storage.shutdown();
+
+       // the hash is kept in the row, so it survives a restart
+       storage = openStorage("H22MapStoreSkip");
+       storage.put(GROUPNAMES[0], KEYNAME, CONTENT + 2);
+       assertEquals(1, storage.getSkippedPuts());
+       assertEquals(CONTENT + 2, storage.get(GROUPNAMES[0], KEYNAME));
+    }
+
+    @Test
+    public void testSkipUnchangedBulkDelete() throws Exception {
+
+       // the group is flushed after the put wrote its row but before it remembered the hash,
+       // the same value put again must still be written
+       H22MapStoreStorage storage = newStorage("H22MapStoreSkipBulk");
+       storage.afterUpsert = () -> {
+           storage.afterUpsert = null;
+           storage.remove(GROUPNAMES[0]);
+       };
+       storage.put(GROUPNAMES[0], KEYNAME, CONTENT);
+       assertEquals(null, storage.get(GROUPNAMES[0], KEYNAME));
+       storage.put(GROUPNAMES[0], KEYNAME, CONTENT);
+       assertEquals(0, storage.getSkippedPuts());
+       assertEquals(CONTENT, storage.get(GROUPNAMES[0], KEYNAME));
+    }
+
+    @Test
+    public void testDedup() throws Exception {
+
+       setting("mapstore.h22.dedup.min.bytes", "1000");
+       H22MapStoreStorage storage = newStorage("H22MapStoreDedup");
+       String shared = new String(new char[5000]).replace('\0', 'x');
+       for (int i = 0; i < 10; i++) {
+           storage.put(GROUPNAMES[0], KEYNAME + i, shared);
+           storage.put(GROUPNAMES[1], KEYNAME + i, shared);
+       }
+       // small values stay in their rows
+       storage.put(GROUPNAMES[0], KEYNAME, CONTENT);
+       storage.put(GROUPNAMES[1], KEYNAME, CONTENT);
+       // stored once per db, every other put only references it
+       assertEquals(20, storedValues(storage) + storage.getDedupedPuts());
+       assertTrue(storage.getDedupedBytes() > 5000 * 10);
+       assertReferences(storage);
+       for (int i = 0; i < 10; i++) {
+           assertEquals(shared, storage.get(GROUPNAMES[0], KEYNAME + i));
+           assertEquals(shared, storage.get(GROUPNAMES[1], KEYNAME + i));
+       }
+       assertEquals(CONTENT, storage.get(GROUPNAMES[0], KEYNAME));
+
+       // overwriting and removing keys moves their references
+       storage.put(GROUPNAMES[0], KEYNAME + 0, shared + 2);
+       storage.put(GROUPNAMES[0], KEYNAME + 1, CONTENT);
+       storage.remove(GROUPNAMES[0], KEYNAME + 2);
+       assertReferences(storage);
+       assertEquals(shared + 2, storage.get(GROUPNAMES[0], KEYNAME + 0));
+       assertEquals(CONTENT, storage.get(GROUPNAMES[0], KEYNAME + 1));
+       assertEquals(null, storage.get(GROUPNAMES[0], KEYNAME + 2));
+       assertEquals(shared, storage.get(GROUPNAMES[0], KEYNAME + 3));
+
+       // the values outlive a group that shared them with another
+       storage.remove(GROUPNAMES[1]);
+       assertReferences(storage);
+       assertEquals(null, storage.get(GROUPNAMES[1], KEYNAME + 3));
+       assertEquals(shared, storage.get(GROUPNAMES[0], KEYNAME + 3));
+
+       storage.remove(GROUPNAMES[0]);
+       assertReferences(storage);
+       assertEquals(0, storedValues(storage));
+
+       storage.put(GROUPNAMES[0], KEYNAME, shared);
+       storage.removeAll();
+       assertEquals(0, storedValues(storage));
+
+       // expired rows drop their references with them
+       setting("mapstore.h22.ttl.seconds." + GROUPNAMES[2], "1");
+       for (int i = 0; i < 5; i++) {
+           storage.put(GROUPNAMES[2], KEYNAME + i, shared);
+           storage.put(GROUPNAMES[0], KEYNAME + i, shared);
+       }
+       Thread.sleep(1100);
+       storage.reapExpired();
+       assertReferences(storage);
+       assertEquals(5, rows(storage));
+       assertEquals(shared, storage.get(GROUPNAMES[0], KEYNAME + 0));
+
+       // as do rows evicted over quota
+       setting("mapstore.h22.quota.max.rows.per.db", "1");
+       storage.evictOverQuota();
+       assertReferences(storage);
+       assertTrue(rows(storage) < 5);
+       setting("mapstore.h22.quota.max.rows.per.db", "0");
+
+       // and rows purged once the db is back from a failure
+       for (int i = 0; i < 5; i++) {
+           storage.put(GROUPNAMES[0], KEYNAME + i, shared);
+       }
+       for (int db = 0; db < dbs(); db++) {
+           storage.breaker(db).configure(60000, 1, 0, 60000, 60000);
+           storage.breaker(db).onFailure();
+       }
+       for (int i = 0; i < 5; i++) {
+           storage.remove(GROUPNAMES[0], KEYNAME + i);
+       }
+       assertEquals(5, rows(storage));
+       for (int db = 0; db < dbs(); db++) {
+           storage.breaker(db).reset();
+       }
+       storage.purgeStaleIds();
+       assertEquals(0, rows(storage));
+       assertReferences(storage);
+       assertEquals(0, storedValues(storage));
+
+       // imported values are stored in their rows and release what the rows referred to
+       File exportFolder = new File("H22MapStoreDedupExport").getAbsoluteFile();
+       FileUtils.deleteDirectory(exportFolder);
+       storage.put(GROUPNAMES[0], KEYNAME, shared + 3);
+       storage.export(exportFolder);
+       storage.put(GROUPNAMES[0], KEYNAME, shared);
+       storage.put(GROUPNAMES[1], KEYNAME, shared);
+       assertEquals(1, storage.importFrom(exportFolder));
+       assertReferences(storage);
+       assertEquals(shared + 3, storage.get(GROUPNAMES[0], KEYNAME));
+       assertEquals(shared, storage.get(GROUPNAMES[1], KEYNAME));
+       storage.remove(GROUPNAMES[1], KEYNAME);
+       assertReferences(storage);
+       assertEquals(0, storedValues(storage));
+    }
+
+    long storedValues(H22MapStoreStorage storage) throws Exception {
+       return sum(storage, "select count(*) from cache_values");
+    }
+
+    /**
+     * Every stored value is counted once for each row pointing to it
+     */
+    void assertReferences(H22MapStoreStorage storage) throws Exception {
+       StringBuilder rows = new StringBuilder();
+       for (int table = 0; table < tables(); table++) {
+           rows.append(table == 0 ? "" : " union all ").append("select cache_digest from ")
+                           .append(H22MapStoreStorage.TABLE_PREFIX).append(table);
+       }
+       assertEquals(0, sum(storage, "select count(*) from cache_values v where refs <> (select count(*) from ("
+                       + rows + ") r where r.cache_digest = v.digest)"));
+    }
+
+    @Test
+    public void testGenerationNames() throws Exception {
+
+       // generations of the same millisecond must still sort newest last
+       String previous = H22HikariPool.newGeneration();
+       assertTrue(previous.compareTo("2026-01-01_00-00-00") > 0);
+       for (int i = 0; i < 100; i++) {
+           String generation = H22HikariPool.newGeneration();
+           assertTrue(generation.compareTo(previous) > 0);
+           previous = generation;
+       }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+
+       H22MapStoreStorage storage = newStorage("H22MapStoreCompact");
+       Random random = new Random(1);
+       byte[] kept = null;
+       for (int round = 0; round < 5; round++) {
+           for (int i = 0; i < 1000; i++) {
+               byte[] value = new byte[4000];
+               random.nextBytes(value);
+               storage.put(GROUPNAMES[0], KEYNAME + i, value);
+               kept = (i == 0) ? value : kept;
+           }
+       }
+       for (int i = 1; i < 1000; i++) {
+           storage.remove(GROUPNAMES[0], KEYNAME + i);
+       }
+
+       // too small to be compacted on schedule
+       for (int db = 0; db < dbs(); db++) {
+           assertEquals(0, storage.compact(db, false));
+       }
+       long reclaimed = 0;
+       for (int db = 0; db < dbs(); db++) {
+           reclaimed += storage.compact(db, true);
+       }
+       assertTrue(reclaimed > 0);
+       assertEquals(dbs(), storage.getCompactions());
+       assertEquals(reclaimed, storage.getReclaimedBytes());
+       assertArrayEquals(kept, (byte[]) storage.get(GROUPNAMES[0], KEYNAME + 0));
+       storage.put(GROUPNAMES[0], KEYNAME, CONTENT);
+       assertEquals(CONTENT, storage.get(GROUPNAMES[0], KEYNAME));
+       assertEquals(2, storage.getKeys(GROUPNAMES[0]).size());
+    }
+
+    @Test
+    public void testCompactionWaits() throws Exception {
+
+       // puts and removes made while their db is offline wait for it instead of going missing
+       H22MapStoreStorage storage = newStorage("H22MapStoreCompactWaits");
+       for (int i = 0; i < 200; i++) {
+           storage.put(GROUPNAMES[0], KEYNAME + i, CONTENT + i);
+       }
+       CompletableFuture<Void> writes = CompletableFuture.runAsync(() -> {
+           for (int round = 0; round < 5; round++) {
+               for (int i = 0; i < 200; i++) {
+                   storage.put(GROUPNAMES[0], KEYNAME + i, CONTENT + round + i);
+               }
+           }
+           for (int i = 0; i < 100; i++) {
+               storage.remove(GROUPNAMES[0], KEYNAME + i);
+           }
+       });
+       while (!writes.isDone()) {
+           for (int db = 0; db < dbs(); db++) {
+               storage.compact(db, true);
+           }
+       }
+       writes.get();
+       assertTrue(storage.getCompactions() > 0);
+       for (int i = 0; i < 200; i++) {
+           assertEquals(i < 100 ? null : CONTENT + 4 + i, storage.get(GROUPNAMES[0], KEYNAME + i));
+       }
+       assertEquals(100, rows(storage));
+    }
+
+    @Test
+    public void testCompactionDeferral() throws Exception {
+
+       // a db that is never quiet is compacted once it was put off for long enough
+       setting("mapstore.h22.compact.min.megabytes", "0");
+       setting("mapstore.h22.compact.quiet.milliseconds", "60000");
+       setting("mapstore.h22.compact.max.deferral.milliseconds", "500");
+       H22MapStoreStorage storage = newStorage("H22MapStoreCompactDeferral");
+       for (int i = 0; i < 20; i++) {
+           storage.put(GROUPNAMES[0], KEYNAME + i, CONTENT);
+       }
+       for (int db = 0; db < dbs(); db++) {
+           assertEquals(0, storage.compact(db, false));
+       }
+       assertEquals(dbs(), storage.getDeferredCompactions());
+       assertEquals(0, storage.getCompactions());
+       Thread.sleep(600);
+       for (int i = 0; i < 20; i++) {
+           storage.put(GROUPNAMES[0], KEYNAME + i, CONTENT + 2);
+       }
+       for (int db = 0; db < dbs(); db++) {
+           storage.compact(db, false);
+       }
+       assertEquals(dbs(), storage.getDeferredCompactions());
+       assertEquals(dbs(), storage.getCompactions());
+       assertEquals(CONTENT + 2, storage.get(GROUPNAMES[0], KEYNAME + 0));
+    }
+
+    @Test
+    public void testCompactionFailures() throws Exception {
+
+       // calls cut off by a compaction are no failures of the db, even to a breaker that opens
+       // on the first one
+       H22MapStoreStorage storage = newStorage("H22MapStoreCompactFailures");
+       storage.put(GROUPNAMES[0], KEYNAME, CONTENT);
+       storage.breaker(0).configure(60000, 1, 0, 60000, 60000);
+       long start = System.nanoTime();
+       storage.compact(0, true);
+       assertFalse(storage.recordFailure(0, new SQLException("Database is already closed"), start));
+       assertTrue(storage.breaker(0).isClosed());
+       assertEquals(CONTENT, storage.get(GROUPNAMES[0], KEYNAME));
+
+       // a call begun after it is counted again
+       assertTrue(storage.recordFailure(0, new SQLException("Timeout"), System.nanoTime()));
+       assertFalse(storage.breaker(0).isClosed());
+    }
+
+    @Test
+    public void testConfig() throws Exception {
+
+       File file = File.createTempFile("H22MapStore", ".properties");
+       AtomicReference<H22Config> applied = new AtomicReference<>();
+       Consumer<H22Config> listener = applied::set;
+       try {
+           FileUtils.writeStringToFile(file,
+                           "mapstore.h22.export.batch.size=50\nmapstore.h22.ttl.reaper.batch.size=lots\n", "UTF-8");
+           System.setProperty(H22Config.CONFIG_FILE_KEY, file.getPath());
+           H22Config.addListener(listener);
+           H22Config config = H22Config.reload();
+           assertTrue(config == applied.get());
+           assertEquals(50, config.getInt("mapstore.h22.export.batch.size", 1000));
+           // not a number, falls back to the default of whoever asks
+           assertEquals(1000, config.getInt("mapstore.h22.ttl.reaper.batch.size", 1000));
+           assertEquals(10, config.getInt("mapstore.h22.ttl.reaper.batch.size", 10));
+           assertEquals(50, HazelH2PropertyBundle.getIntProperty("mapstore.h22.export.batch.size", 1000));
+
+           // system properties win over the file
+           System.setProperty("mapstore.h22.export.batch.size", "70");
+           assertEquals(70, H22Config.reload().getInt("mapstore.h22.export.batch.size", 1000));
+           assertTrue(H22Config.reload() == H22Config.current());
+       } finally {
+           H22Config.removeListener(listener);
+           System.clearProperty(H22Config.CONFIG_FILE_KEY);
+           System.clearProperty("mapstore.h22.export.batch.size");
+           H22Config.reload();
+           file.delete();
+       }
+       assertEquals(1000, H22Config.current().getInt("mapstore.h22.export.batch.size", 0));
+    }
 }